@@ -0,0 +1,13 @@
+#!/bin/sh
+#
+# Runs scrivepdftools.jar with the class-data sharing archive made by
+# 'make cds' when it is next to the jar. Options for the JVM can be
+# given in JAVA_OPTS.
+#
+
+dir=$(dirname "$0")
+if [ -f "$dir/scrivepdftools.jsa" ]; then
+    # JVMs that did not make the archive run without it
+    exec java -XX:+IgnoreUnrecognizedVMOptions -XX:+UnlockDiagnosticVMOptions -XX:SharedArchiveFile="$dir/scrivepdftools.jsa" -Xshare:auto $JAVA_OPTS -jar "$dir/scrivepdftools.jar" "$@"
+fi
+exec java $JAVA_OPTS -jar "$dir/scrivepdftools.jar" "$@"
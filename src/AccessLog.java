@@ -0,0 +1,196 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+
+/**
+ * Access log with one JSON record per request. Workers only put finished
+ * requests into a bounded lock-free ring buffer, a background thread
+ * formats and writes them. When the buffer is full records are dropped
+ * and counted, a worker never waits for the log.
+ */
+public class AccessLog
+{
+    /**
+     * Log of the server, null when requests are not logged
+     */
+    static volatile AccessLog log = null;
+
+    private final AtomicReferenceArray<Metrics.Request> ring;
+    private final int mask;
+
+    /**
+     * Next slot to be claimed by a worker
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * Next slot to be written out, advanced only by the writer thread
+     */
+    private volatile long head = 0;
+
+    final AtomicLong dropped = new AtomicLong();
+    private final Writer out;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+
+    /**
+     * @param os        where records are written, one per line
+     * @param capacity  records buffered at most, rounded up to a power of two
+     */
+    AccessLog(OutputStream os, int capacity) throws IOException
+    {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        ring = new AtomicReferenceArray<Metrics.Request>(size);
+        mask = size - 1;
+        out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 65536);
+    }
+
+    /**
+     * Starts logging to a file, or to standard output for "-"
+     */
+    static void start(String path, int capacity) throws IOException
+    {
+        final AccessLog l = new AccessLog(path.equals("-") ? (OutputStream)System.out : new FileOutputStream(path, true), capacity);
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                l.drain();
+            }
+        }, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+        log = l;
+    }
+
+    /**
+     * Logs a finished request, does nothing when there is no log
+     */
+    static void record(Metrics.Request r)
+    {
+        AccessLog l = log;
+        if (l != null)
+            l.offer(r);
+    }
+
+    static long droppedRecords()
+    {
+        AccessLog l = log;
+        return (l == null) ? 0 : l.dropped.get();
+    }
+
+    boolean offer(Metrics.Request r)
+    {
+        long t;
+        do {
+            t = tail.get();
+            if (t - head > mask) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        ring.set((int)t & mask, r);
+        return true;
+    }
+
+    /**
+     * @return next record or null when the next slot is not published yet
+     */
+    private Metrics.Request poll()
+    {
+        final int i = (int)head & mask;
+        Metrics.Request r = ring.get(i);
+        if (r == null)
+            return null;
+        ring.set(i, null);
+        head = head + 1;
+        return r;
+    }
+
+    private void drain()
+    {
+        long reported = 0;
+        while (true) {
+            try {
+                Metrics.Request r;
+                boolean written = false;
+                while ((r = poll()) != null) {
+                    out.write(format(r));
+                    out.write('\n');
+                    written = true;
+                }
+                final long n = dropped.get();
+                if (n != reported) {
+                    out.write("{\"time\":" + JSONObject.quote(dateFormat.format(new Date())) + ",\"dropped\":" + (n - reported) + "}\n");
+                    reported = n;
+                    written = true;
+                }
+                if (written)
+                    out.flush();
+                else
+                    LockSupport.parkNanos(10 * 1000000L);
+            } catch (IOException e) {
+                // nothing sensible to do, keep draining so workers are not affected
+                e.printStackTrace(System.err);
+                LockSupport.parkNanos(1000 * 1000000L);
+            }
+        }
+    }
+
+    private static String millis(long nanos)
+    {
+        return String.valueOf(Math.round(nanos / 1e3) / 1e3);
+    }
+
+    String format(Metrics.Request r)
+    {
+        StringBuilder s = new StringBuilder(256);
+        s.append("{\"time\":").append(JSONObject.quote(dateFormat.format(new Date(r.time))));
+        if (r.client != null)
+            s.append(",\"client\":").append(JSONObject.quote(r.client));
+        s.append(",\"command\":").append(JSONObject.quote(r.command));
+        s.append(",\"status\":").append(JSONObject.quote(r.status));
+        if (r.pdfName != null)
+            s.append(",\"pdf\":").append(JSONObject.quote(r.pdfName));
+        s.append(",\"bytes_in\":").append(r.bytesIn);
+        s.append(",\"bytes_out\":").append(r.bytesOut);
+        s.append(",\"queue_ms\":").append(millis(r.start - r.queued));
+        if (r.parsed != 0) {
+            s.append(",\"parse_ms\":").append(millis(r.parsed - r.start));
+            if (r.executed != 0)
+                s.append(",\"execute_ms\":").append(millis(r.executed - r.parsed));
+        }
+        s.append(",\"total_ms\":").append(millis(r.end - r.queued));
+        if (r.error != null)
+            s.append(",\"error\":").append(JSONObject.quote(r.error));
+        s.append('}');
+        return s.toString();
+    }
+}
@@ -21,7 +21,6 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -34,6 +33,7 @@ import java.util.List;
 
 import javax.imageio.ImageIO;
 
+import org.apache.commons.io.IOUtils;
 import org.bouncycastle.util.encoders.Base64;
 import org.json.JSONException;
 
@@ -151,11 +151,9 @@ public class AddVerificationPages extends Engine {
 	static PdfName scriveTagVerPage = new PdfName("Scrive:VerificationPage");
 	static PdfName scriveTagFooter = new PdfName("Scrive:Footer");
 
-    SealSpec spec = null;
-    
-    public void Init(InputStream specFile) throws IOException {
+    public Object parse(InputStream specFile) throws IOException {
         try {
-            spec = SealSpec.FromJSON(specFile);
+            return SealSpec.FromJSON(specFile);
         } catch (JSONException e) {
             throw new IOException(e);
         }
@@ -210,6 +208,7 @@ public class AddVerificationPages extends Engine {
 
         int count = reader.getNumberOfPages();
         for( int i=1; i<=count; i++ ) {
+            Deadline.check();
 
             Rectangle cropBox = reader.getCropBox(i);
             int rotate = reader.getPageRotation(i);
@@ -354,6 +353,7 @@ public class AddVerificationPages extends Engine {
 
         int count = reader.getNumberOfPages();
         for( int i=1; i<=count; i++ ) {
+            Deadline.check();
 
             Rectangle cropBox = reader.getCropBox(i);
             int rotate = reader.getPageRotation(i);
@@ -403,7 +403,7 @@ public class AddVerificationPages extends Engine {
                         float fontOffset   = 0 * fs;
 
                         float realx = field.x * cropBox.getWidth() + cropBox.getLeft() - fontOffset;
-                        float realy = (1 - field.y) * cropBox.getHeight() + cropBox.getBottom() - fontBaseline;
+                        float realy = (1 - field.y) * cropBox.getHeight() + cropBox.getBottom() - fontBaseline.get();
 
                         ColumnText.showTextAligned(overCanvas, Element.ALIGN_LEFT,
                                                    para,
@@ -1086,6 +1086,7 @@ public class AddVerificationPages extends Engine {
 
         int pageCount = reader.getNumberOfPages();
         for( int i=1; i<=pageCount; i++ ) {
+            Deadline.check();
             PdfContentByte canvasUnder = stamper.getUnderContent(i);
 
             canvasUnder.rectangle(pageFrame);
@@ -1140,11 +1141,12 @@ public class AddVerificationPages extends Engine {
         }
     }
 
-    public void execute(InputStream pdf, OutputStream out)
+    public void execute(Context ctx, InputStream pdf, OutputStream out)
         throws IOException, DocumentException, Base64DecodeException
     {
+        final SealSpec spec = (SealSpec)ctx.spec;
         if (pdf == null)
-            pdf = new FileInputStream(spec.input);
+            pdf = new FileStream(spec.input);
         if (out == null)
             out = new FileOutputStream(spec.output);
        
@@ -1175,6 +1177,8 @@ public class AddVerificationPages extends Engine {
                         }
                         ByteArrayOutputStream a2 = addAttachmentFooter(spec, spec.filesList.get(i), a);
                         pdfsToConcatenate.add(new PdfReader(a2.toByteArray()));
+                    } catch (Deadline.ExceededException e) {
+                        throw e;
                     } catch (IOException e) {
                         spec.filesList.get(i).pagesText = spec.staticTexts.hiddenAttachmentText;
                         fileAttachments.add(new FileAttachment(spec.filesList.get(i).input, new File(spec.filesList.get(i).input).getName()));
@@ -1186,7 +1190,7 @@ public class AddVerificationPages extends Engine {
 
             stampFooterOverSealPages(spec, new PdfReader(sealPagesRaw.toByteArray()), sealPages);
 
-            stampFieldsAndPaginationOverPdf(spec, TextDump.createFlattened(new PdfReader(pdf)), getAllFields(spec), getAllHighlightedImage(spec), sourceWithFields);
+            stampFieldsAndPaginationOverPdf(spec, TextDump.createFlattened(openReader(pdf)), getAllFields(spec), getAllHighlightedImage(spec), sourceWithFields);
 
 
             pdfsToConcatenate.add(0,new PdfReader(sourceWithFields.toByteArray()));
@@ -1201,13 +1205,17 @@ public class AddVerificationPages extends Engine {
                                out);
         }
         else {
-            stampFieldsAndPaginationOverPdf(spec, TextDump.createFlattened(new PdfReader(pdf)), getAllFields(spec), getAllHighlightedImage(spec), out);
+            stampFieldsAndPaginationOverPdf(spec, TextDump.createFlattened(openReader(pdf)), getAllFields(spec), getAllHighlightedImage(spec), out);
         }
     }
 
-    static BaseFont baseFonts[];
+    /*
+     * Fonts are shared by all threads of the HTTP server, so publish
+     * the array only once it is complete.
+     */
+    static volatile BaseFont baseFonts[];
 
-    static void initializeBaseFonts(ArrayList<String> fonts)
+    static synchronized void initializeBaseFonts(ArrayList<String> fonts)
         throws DocumentException, IOException
     {
         if( baseFonts==null ) {
@@ -1220,8 +1228,9 @@ public class AddVerificationPages extends Engine {
 
                     baseFonts1.add(baseFont);
                 }
-                baseFonts = new BaseFont[baseFonts1.size()];
-                baseFonts1.toArray(baseFonts);
+                BaseFont[] baseFonts2 = new BaseFont[baseFonts1.size()];
+                baseFonts1.toArray(baseFonts2);
+                baseFonts = baseFonts2;
             }
             else {
                 // this is a backward compatibility fallback, should
@@ -1229,17 +1238,24 @@ public class AddVerificationPages extends Engine {
                 // it should be
 
             	String [] res = new String[] {"assets/SourceSansPro-Light.ttf", "assets/NotoSans-Regular.ttf", "assets/NotoSansThai-Regular.ttf", "assets/NotoSansHebrew-Regular.ttf"};
-                baseFonts = new BaseFont[res.length];
+                BaseFont[] baseFonts2 = new BaseFont[res.length];
                 for (int i = 0; i < res.length; ++i)
-                	baseFonts[i] = BaseFont.createFont(Main.getResource(res[i]), BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
+                	baseFonts2[i] = BaseFont.createFont(Main.getResource(res[i]), BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
+                baseFonts = baseFonts2;
             }
         }
     }
 
     /*
-     * Multiple returns in Java. Sorry about this.
+     * Multiple returns in Java. Sorry about this. Kept per thread as
+     * the HTTP server seals many documents at once.
      */
-    static float fontBaseline;
+    static ThreadLocal<Float> fontBaseline = new ThreadLocal<Float>() {
+        @Override
+        protected Float initialValue() {
+            return 0f;
+        }
+    };
 
     /*
      * For future generation messing with this code: proper iteration
@@ -1281,7 +1297,7 @@ public class AddVerificationPages extends Engine {
                  * Based on first character in the string we need to
                  * calculate font baseline.
                  */
-                fontBaseline = baseFont.getFontDescriptor(BaseFont.ASCENT, size);
+                fontBaseline.set(baseFont.getFontDescriptor(BaseFont.ASCENT, size));
             }
             if( lastChunk!=null && (lastBaseFont==baseFont || baseFont==null) ) {
                 lastChunk.append(String.valueOf(c));
@@ -1309,14 +1325,27 @@ public class AddVerificationPages extends Engine {
         return para;
     }
 
-    static PdfReader sealMarkerCached;
+    /*
+     * PdfReader is not thread safe, so each thread gets its own copy
+     * parsed from bytes loaded once. Threads may be short lived (one
+     * virtual thread per request) so reading the resource is shared.
+     */
+    static byte[] sealMarkerBytes;
+    static ThreadLocal<PdfReader> sealMarkerCached = new ThreadLocal<PdfReader>();
     static PdfReader getSealMarker()
         throws DocumentException, IOException
     {
-        if( sealMarkerCached==null ) {
-            sealMarkerCached = new PdfReader(Main.getResource("assets/sealmarker.pdf"));
+        if( sealMarkerCached.get()==null ) {
+            synchronized( AddVerificationPages.class ) {
+                if( sealMarkerBytes==null ) {
+                    InputStream in = Main.getResourceAsStream("assets/sealmarker.pdf");
+                    sealMarkerBytes = IOUtils.toByteArray(in);
+                    in.close();
+                }
+            }
+            sealMarkerCached.set(new PdfReader(sealMarkerBytes));
         }
-        return sealMarkerCached;
+        return sealMarkerCached.get();
     }
 
 
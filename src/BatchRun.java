@@ -0,0 +1,289 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a command over many spec files on a pool of threads sharing the
+ * engine of the command. Finished specs are appended to a checkpoint
+ * file, so that an interrupted run started again skips them.
+ */
+public class BatchRun
+{
+    public static final String USAGE = "java -jar scrivepdftools.jar batch command [-j threads] [--checkpoint file] [--retry-failed] (--manifest file | directory | config.json ...)";
+
+    static final String DONE = "done";
+    static final String FAILED = "failed";
+
+    public String command;
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Progress file, by default next to the manifest or directory
+     */
+    public String checkpoint = null;
+
+    /**
+     * Run again specs that failed in a previous run
+     */
+    public boolean retryFailed = false;
+
+    /**
+     * File listing spec files, one per line
+     */
+    public String manifest = null;
+
+    /**
+     * Spec files or a single directory of them
+     */
+    public List<String> sources = new ArrayList<String>();
+
+    /**
+     * Parses options following the 'batch' command.
+     *
+     * @throws IllegalArgumentException with a message suitable for the user
+     */
+    public static BatchRun parse(String[] args, int from)
+    {
+        BatchRun b = new BatchRun();
+        if (from >= args.length)
+            throw new IllegalArgumentException("Missing command");
+        b.command = args[from];
+        if (Main.getEngine(b.command) == null)
+            throw new IllegalArgumentException("Unknown command: " + b.command);
+        for (int i = from + 1; i < args.length; i++) {
+            final String opt = args[i];
+            if (opt.equals("-j")) {
+                b.threads = ServerOptions.number(ServerOptions.value(args, ++i, opt), "number of threads");
+            } else if (opt.equals("--checkpoint")) {
+                b.checkpoint = ServerOptions.value(args, ++i, opt);
+            } else if (opt.equals("--retry-failed")) {
+                b.retryFailed = true;
+            } else if (opt.equals("--manifest")) {
+                b.manifest = ServerOptions.value(args, ++i, opt);
+            } else if (opt.startsWith("-")) {
+                throw new IllegalArgumentException("Unknown option: " + opt);
+            } else {
+                b.sources.add(opt);
+            }
+        }
+        if (b.threads < 1)
+            throw new IllegalArgumentException("Invalid number of threads: " + b.threads);
+        if ((b.manifest == null) && b.sources.isEmpty())
+            throw new IllegalArgumentException("Missing manifest, directory or spec files");
+        if ((b.manifest != null) && !b.sources.isEmpty())
+            throw new IllegalArgumentException("Use either a manifest or spec files");
+        if ((b.sources.size() == 1) && new File(b.sources.get(0)).isDirectory()) {
+            if (b.checkpoint == null)
+                b.checkpoint = new File(b.sources.get(0)).getPath() + ".checkpoint";
+        } else if ((b.manifest != null) && (b.checkpoint == null)) {
+            b.checkpoint = b.manifest + ".checkpoint";
+        }
+        return b;
+    }
+
+    /**
+     * Spec files still to be processed, shared by the threads
+     */
+    private Iterator<String> specs;
+    private BufferedReader manifestReader = null;
+    private Map<String, String> finished = new HashMap<String, String>();
+    private PrintWriter progress = null;
+
+    final AtomicInteger done = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    int skipped = 0;
+
+    /**
+     * @return next spec to process or null when there are no more
+     */
+    private synchronized String next() throws IOException
+    {
+        while (true) {
+            String spec;
+            if (manifestReader != null) {
+                spec = manifestReader.readLine();
+                if (spec == null)
+                    return null;
+                spec = spec.trim();
+                if ((spec.length() == 0) || spec.startsWith("#"))
+                    continue;
+            } else if (specs.hasNext()) {
+                spec = specs.next();
+            } else {
+                return null;
+            }
+            String status = finished.get(spec);
+            if ((status != null) && (status.equals(DONE) || !retryFailed)) {
+                skipped++;
+                continue;
+            }
+            return spec;
+        }
+    }
+
+    private synchronized void finished(String spec, String status, String message)
+    {
+        if (progress == null)
+            return;
+        progress.println(status + "\t" + spec + ((message != null) ? "\t" + message.replace('\n', ' ') : ""));
+        progress.flush();
+    }
+
+    /**
+     * Reads checkpoint of a previous run. Lines are 'status TAB spec
+     * [TAB message]', a later line for the same spec wins.
+     */
+    private void loadCheckpoint() throws IOException
+    {
+        File f = new File(checkpoint);
+        if (!f.exists())
+            return;
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                // the last line may be cut by an interrupted run
+                if ((fields.length >= 2) && (fields[0].equals(DONE) || fields[0].equals(FAILED)))
+                    finished.put(fields[1], fields[0]);
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    private static boolean endsWithPartialLine(File f) throws IOException
+    {
+        if (f.length() == 0)
+            return false;
+        RandomAccessFile r = new RandomAccessFile(f, "r");
+        try {
+            r.seek(f.length() - 1);
+            return r.read() != '\n';
+        } finally {
+            r.close();
+        }
+    }
+
+    private void work()
+    {
+        final Engine engine = Main.getEngine(command);
+        String spec;
+        while (true) {
+            try {
+                if ((spec = next()) == null)
+                    return;
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                return;
+            }
+            try {
+                FileInputStream in = new FileInputStream(spec);
+                try {
+                    engine.execute(in, null, null);
+                } finally {
+                    in.close();
+                }
+                done.incrementAndGet();
+                finished(spec, DONE, null);
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                System.err.println("Error: " + spec + ": " + e);
+                finished(spec, FAILED, String.valueOf(e));
+            }
+        }
+    }
+
+    /**
+     * @return number of failed specs
+     */
+    public int run() throws IOException
+    {
+        if (manifest != null) {
+            manifestReader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+        } else if ((sources.size() == 1) && new File(sources.get(0)).isDirectory()) {
+            File dir = new File(sources.get(0));
+            String[] names = dir.list();
+            Arrays.sort(names);
+            ArrayList<String> files = new ArrayList<String>();
+            for (String name : names)
+                if (name.endsWith(".json") || name.endsWith(".yaml") || name.endsWith(".yml"))
+                    files.add(new File(dir, name).getPath());
+            specs = files.iterator();
+        } else {
+            specs = sources.iterator();
+        }
+        if (checkpoint != null) {
+            loadCheckpoint();
+            progress = new PrintWriter(new OutputStreamWriter(new FileOutputStream(checkpoint, true), "UTF-8"));
+            if (endsWithPartialLine(new File(checkpoint)))
+                progress.println();
+        }
+
+        final long start = System.currentTimeMillis();
+        Thread[] pool = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            pool[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "batch-" + (i + 1));
+            pool[i].start();
+        }
+        long reported = start;
+        for (Thread t : pool) {
+            while (t.isAlive()) {
+                try {
+                    t.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                final long now = System.currentTimeMillis();
+                if (now - reported >= 10000) {
+                    reported = now;
+                    System.err.println("Progress: " + done.get() + " done, " + failed.get() + " failed in " + ((now - start) / 1000) + " s");
+                }
+            }
+        }
+        if (manifestReader != null)
+            manifestReader.close();
+        if (progress != null)
+            progress.close();
+        final long ms = Math.max(System.currentTimeMillis() - start, 1);
+        System.err.println("Batch finished: " + done.get() + " done, " + failed.get() + " failed, " + skipped + " skipped in " + ms + " ms" +
+                           " (" + (done.get() * 1000L / ms) + " specs/s on " + threads + " threads)");
+        return failed.get();
+    }
+}
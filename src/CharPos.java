@@ -0,0 +1,193 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.Serializable;
+
+import com.itextpdf.awt.geom.Rectangle2D;
+import com.itextpdf.text.pdf.parser.LineSegment;
+import com.itextpdf.text.pdf.parser.Vector;
+
+/**
+ * Glyph of PageText with its position, while lines are built
+ */
+class CharPos implements Serializable
+{
+    private static final long serialVersionUID = 6875877776978057339L;
+    
+    /*
+     * This is Unicode code point as used by java.String, so it
+     * may be a surrogate pair or some other crap. As soon as we
+     * enter markets that need this we need to move to full
+     * Unicode support. This requires involved changes everywhere
+     * so beware to test this properly once we are there.
+     */
+    String c;
+    /*
+     * Coordinates as returned by iText. We know that y is font
+     * baseline coordinate.
+     */
+    private float x0, y0, bx, by;
+    private Rectangle2D bbox = null, bbox2 = null;
+
+    public CharPos(String text, LineSegment base, Rectangle2D bbox)
+    {
+        c = text;
+        this.bbox = bbox;
+        // save base line
+        Vector origin = base.getStartPoint();
+        x0 = origin.get(Vector.I1);
+        y0 = origin.get(Vector.I2);
+        Vector b = base.getEndPoint().subtract(origin);
+        bx = b.get(Vector.I1);
+        by = b.get(Vector.I2);
+        final float xc = x0 + 0.5f * bx, yc = y0 + 0.5f * by; // base line center
+        bbox2 = new Rectangle2D.Float(xc, yc, 0.0f, 0.0f); 
+    }
+
+    public float getX() {
+        return x0;
+    }
+    public float getY() {
+        return y0;
+    }
+    public float getBaseX() {
+        return bx;
+    }
+    public float getBaseY() {
+        return by;
+    }
+    public Vector getBase()   {
+        return new Vector(bx, by, 0.0f);
+    }
+    public float getX2() {
+        return x0 + bx;
+    }
+    public float getY2() {
+        return y0 + by;
+    }
+
+    public Rectangle2D getBounds() {
+        return bbox;
+    }
+
+    public Rectangle2D getBaseLineBounds() {
+        return bbox2;
+    }
+
+    /*
+     * Returns glyph's width
+     */
+    public float getWidth() {
+        if (isHorizontal())
+            return Math.abs(bx);
+        else if (isVertical())
+            return Math.abs(by);
+        else
+            return getBase().length();
+    }
+
+    /*
+     * Checks for most popular case of regular, horizontal text
+     */
+    public boolean isHorizontal()
+    {
+        return Math.abs(by) < 0.0001;
+    }
+
+    public boolean isVertical()
+    {
+        return Math.abs(bx) < 0.0001;
+    }
+
+    // Comparison tool, gives 0 for zero, -1 for negatives and 1 for positives
+    public static int cmp(float v, float tol) {
+        if (Math.abs(v) < tol) // NOTE: adjust tolerance for 0
+            return 0;
+        return (v < 0.0) ? -1 : 1;
+    }
+    
+    /*
+     * Compares text direction of two glyphs (0=same direction)
+     */
+    public float cmpDir(CharPos c) {        
+        return bx * c.getBaseY() - by * c.getBaseX();
+    }
+
+    /*
+     * Compares vertical position of two glyphs (0=same line)
+     */
+    public float cmpLine(CharPos c) {
+        if (isHorizontal())
+            return (bx >= 0.0f) ? (y0 - c.getY()) : (c.getY() - y0); // simple Y2 - Y1 for horizontal text
+        else if (isVertical())
+            return (by > 0.0f) ? (c.getX() - x0) : (x0 - c.getX()); // simple X2 - X1 for vertical text
+
+        Vector p = new Vector(c.getX() - x0, c.getY() - y0, 0.0f);
+        final float l0 = getBase().length();
+        Vector pp = getBase().multiply(p.dot(getBase()) / (l0 * l0));
+        Vector d = p.subtract(pp);
+        return bx * d.get(Vector.I2) - by * d.get(Vector.I1); 
+    }
+
+    /*
+     * Compares horizontal position of two glyphs
+     */
+    public int cmpOrder(CharPos c2) {
+        final float cx = (float)c2.getBounds().getCenterX();
+        final float cy = (float)c2.getBounds().getCenterY();
+        if (isHorizontal()) {
+            final int z = (cx >= bbox.getMaxX()) ? 1 : ((cx <= bbox.getMinX()) ? -1 : 0);
+            return (bx >= 0.0f) ? z : -z;
+        } else if (isVertical()) {
+            final int z = (cy >= bbox.getMaxY()) ? 1 : ((cy <= bbox.getMinY()) ? -1 : 0);
+            return (by >= 0.0f) ? z : -z;
+        }
+        
+        return cmp(getBase().dot(new Vector(c2.getX() - x0, c2.getY() - y0, 0.0f)), 0.0f);
+    }
+
+    public boolean detectSpace(CharPos prev) {
+        final float space = 0.2f * getWidth();
+        if ((space == 0) && (bbox.getX() >= prev.getBounds().getMinX()) && (bbox.getX() <= prev.getBounds().getMaxX()) && (bbox.getY() >= prev.getBounds().getMinY()) && (bbox.getY() <= prev.getBounds().getMaxY())) 
+            return false; // 0-width problem (sadly we need own version of 'contains' for empty boxes...) 
+        if (isHorizontal()) {
+            return (bx >= 0.0f) ? (bbox.getMinX() >= prev.getBounds().getMaxX() + space) : (bbox.getMaxX() <= prev.getBounds().getMinX() - space);   
+        } else if (isVertical()) {
+            return (by >= 0.0f) ? (bbox.getMinY() >= prev.getBounds().getMaxY() + space) : (bbox.getMaxY() <= prev.getBounds().getMinY() - space);   
+        }
+
+        final Vector b = prev.getBase();
+        final Vector b2 = new Vector(getX() - prev.getX(), getY() - prev.getY(), 0.0f);
+        final float l = b.length(), l2 = b.dot(b2) / l;
+        return l2 >= l + space; 
+    }
+    
+    public void merge(CharPos other) {
+        c += other.c;
+        if (!isVertical())
+            bx = Math.max(bx, other.getX2() - x0);
+        if (!isHorizontal())
+            by = Math.max(by, other.getY2() - y0);
+        bbox.add(other.bbox);
+        bbox2.add(other.bbox2);
+    }
+    
+    public String toString() {
+        return "\"" + c + "\":(" + x0 + "," + y0 + "),<" + bx + ","+ by + ">";
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.IOException;
+
+/**
+ * Deadline of the work done by the current thread. Engines call check()
+ * at page boundaries, so that work nobody waits for any more is given up.
+ * Threads without a deadline are never interrupted.
+ */
+public class Deadline
+{
+    /**
+     * Thrown by check() once the deadline has passed
+     */
+    public static class ExceededException extends IOException
+    {
+        private static final long serialVersionUID = -6086425313946834702L;
+
+        ExceededException()
+        {
+            super("Deadline exceeded");
+        }
+    }
+
+    private static final ThreadLocal<Long> deadline = new ThreadLocal<Long>();
+
+    /**
+     * @param at  System.nanoTime() based deadline for the current thread
+     */
+    public static void set(long at)
+    {
+        deadline.set(Long.valueOf(at));
+    }
+
+    public static void clear()
+    {
+        deadline.remove();
+    }
+
+    /**
+     * @return deadline of the current thread or null
+     */
+    public static Long get()
+    {
+        return deadline.get();
+    }
+
+    /**
+     * @return nanoseconds left or Long.MAX_VALUE without a deadline
+     */
+    public static long remaining()
+    {
+        Long at = deadline.get();
+        return (at == null) ? Long.MAX_VALUE : at.longValue() - System.nanoTime();
+    }
+
+    public static void check() throws ExceededException
+    {
+        Long at = deadline.get();
+        if ((at != null) && (at.longValue() - System.nanoTime() <= 0))
+            throw new ExceededException();
+    }
+}
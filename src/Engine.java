@@ -1,9 +1,12 @@
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
 import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.pdf.PdfReader;
 
 /*
  *  Copyright (C) 2014 Scrive AB
@@ -24,14 +27,109 @@ import com.itextpdf.text.DocumentException;
  */
 
 public abstract class Engine {
-    
 
     /**
-     * Initializes engine specification.
+     * Input stream over a PDF file on disk. Engines open it through a
+     * memory mapped RandomAccessSource instead of reading it to heap, so
+     * the file itself is opened only once the stream is read.
+     */
+    public static class FileStream extends InputStream {
+        private final File file;
+        private InputStream in = null;
+
+        public FileStream(File file) throws FileNotFoundException {
+            if (!file.isFile())
+                throw new FileNotFoundException(file.getPath() + " (No such file)");
+            this.file = file;
+        }
+
+        public FileStream(String path) throws FileNotFoundException {
+            this(new File(path));
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        private InputStream in() throws IOException {
+            if (in == null)
+                in = new FileInputStream(file);
+            return in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in().read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return in().skip(n);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return in().available();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null)
+                in.close();
+        }
+    }
+
+    /**
+     * Opens input PDF. Files are accessed through iText's
+     * RandomAccessSourceFactory, so only the object graph goes to heap,
+     * stream data is read from the mapped file when needed.
+     * @param pdf
+     * @return
+     * @throws IOException
+     */
+    public static PdfReader openReader(InputStream pdf) throws IOException {
+        PdfReader reader;
+        if (pdf instanceof FileStream)
+            reader = new PdfReader(((FileStream)pdf).getFile().getPath(), null, false);
+        else
+            reader = new PdfReader(pdf);
+        Metrics.pagesProcessed(reader.getNumberOfPages());
+        return reader;
+    }
+
+    /**
+     * State of a single run of an engine: its spec and anything derived
+     * from it. Engines keep no state of their own, so a single instance
+     * serves all threads and its caches live as long as the process.
+     */
+    public static class Context {
+        final Object spec;
+
+        public Context(Object spec) {
+            this.spec = spec;
+        }
+    }
+
+    /**
+     * Parses engine specification.
      * @param spec
+     * @return spec object, passed to newContext()
      * @throws IOException
      */
-    public abstract void Init(InputStream spec) throws IOException;
+    public abstract Object parse(InputStream spec) throws IOException;
+
+    /**
+     * Creates state of one run, engines that need more than the spec
+     * return a subclass.
+     */
+    public Context newContext(Object spec) {
+        return new Context(spec);
+    }
 
     /**
      * This version works on external disk files. 
@@ -41,19 +139,41 @@ public abstract class Engine {
      */
     public void execute(String specFile) throws IOException, DocumentException {
         FileInputStream spec = new FileInputStream(specFile);  
-        Init(spec);
-        execute((InputStream)null, (OutputStream)null);
-        spec.close();
+        try {
+            execute(spec, null, null);
+        } finally {
+            spec.close();
+        }
+    }
+
+    /**
+     * Parses spec and runs the engine once.
+     * @param pdf   null to read spec.input
+     * @param out   null to write spec.output
+     */
+    public void execute(InputStream spec, InputStream pdf, OutputStream out) throws IOException, DocumentException {
+        execute(newContext(parse(spec)), pdf, out);
     }
-  
     
     /**
      * This version works on raw data.
+     * @param ctx
      * @param pdf
-     * @return
+     * @param out
      * @throws IOException
      * @throws DocumentException
      */
-    public abstract void execute(InputStream pdf, OutputStream out) throws IOException, DocumentException;
+    public abstract void execute(Context ctx, InputStream pdf, OutputStream out) throws IOException, DocumentException;
+
+    /**
+     * Runs engine as a stage of a pipeline. The document is modified in
+     * place and is written out by the pipeline only once at the end.
+     * @param doc   document passed between stages
+     * @param out   text result of the stage, if the engine produces one
+     * @throws IllegalArgumentException if the engine can not be a pipeline stage
+     */
+    public void apply(Context ctx, Pipeline.Document doc, OutputStream out) throws IOException, DocumentException {
+        throw new IllegalArgumentException("Not supported in a pipeline: " + getClass().getName());
+    }
 
 }
@@ -20,13 +20,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Map;
 
-import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.TypeDescription;
-import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.nodes.Tag;
-import org.yaml.snakeyaml.representer.Representer;
 
 import com.itextpdf.awt.geom.Rectangle2D;
 import com.itextpdf.text.BaseColor;
@@ -37,6 +32,7 @@ import com.itextpdf.text.Paragraph;
 import com.itextpdf.text.Rectangle;
 import com.itextpdf.text.pdf.ColumnText;
 import com.itextpdf.text.pdf.PdfContentByte;
+import com.itextpdf.text.pdf.PdfStamper;
 
 /*
  * Class that directly serve deserialization of JSON data.
@@ -74,7 +70,7 @@ class ExtractTextSpec extends YamlSpec
 
     static private ArrayList<TypeDescription> td = null;
 
-    static public ArrayList<TypeDescription> getTypeDescriptors() {
+    static synchronized public ArrayList<TypeDescription> getTypeDescriptors() {
         if (td == null) {
             td = new ArrayList<TypeDescription>();
             TypeDescription extractTextDesc = new TypeDescription(ExtractTextSpec.class);
@@ -106,41 +102,40 @@ public class ExtractTexts extends TextEngine {
         }
         ArrayList<String> foundText = new ArrayList<String>();
 
-        for (Map.Entry<Integer, ArrayList<ArrayList<CharPos>>> lines: text.getChars().entrySet())
-            for (ArrayList<CharPos> line: lines.getValue()) {
-                final boolean horizontal = line.get(0).isHorizontal(); // IMPORTANT: assume !horizontal => vertical, since only H/V text is allowed
-                Rectangle2D b1 = line.get(0).getBaseLineBounds();
+        for (PageText.Line line: text.getLines()) {
+            final boolean horizontal = text.isHorizontal(line.first()); // IMPORTANT: assume !horizontal => vertical, since only H/V text is allowed
+            Rectangle2D b1 = text.getBaseLineBounds(line.first());
+            if (horizontal) {
+                if ((b1.getMinY() > t) || (b1.getMaxY() < b))
+                    continue;
+            } else {
+                if ((b1.getMinX() > r) || (b1.getMaxX() < l))
+                    continue;
+            }
+            StringBuilder txt = new StringBuilder();
+            for (int g = line.first(); g < line.end(); g++) {
+                Rectangle2D bb = text.getBaseLineBounds(g);
                 if (horizontal) {
-                    if ((b1.getMinY() > t) || (b1.getMaxY() < b))
+                    if ((bb.getMinX() > r) || (bb.getMaxX() < l))
                         continue;
                 } else {
-                    if ((b1.getMinX() > r) || (b1.getMaxX() < l))
+                    if ((bb.getMinY() > t) || (bb.getMaxY() < b))
                         continue;
                 }
-                String txt = "";
-                for (CharPos cp: line) {
-                    if (horizontal) {
-                        if ((cp.getBaseLineBounds().getMinX() > r) || (cp.getBaseLineBounds().getMaxX() < l))
-                            continue;
-                    } else {
-                        if ((cp.getBaseLineBounds().getMinY() > t) || (cp.getBaseLineBounds().getMaxY() < b))
-                            continue;
-                    }
-                    txt += cp.c + " ";
-                }
-                if (!txt.isEmpty())
-                    foundText.add(PageText.fixBiDiText(txt.substring(0,  txt.length() - 1)));
+                text.appendText(g, txt);
+                txt.append(' ');
             }
+            if (txt.length() > 0)
+                foundText.add(PageText.fixBiDiText(txt.substring(0,  txt.length() - 1)));
+        }
         return foundText;
     }
     
-    ExtractTextSpec spec = null;
-    
     @Override
-    public void Init(InputStream specFile) throws IOException {
+    public Object parse(InputStream specFile) throws IOException {
         // TODO: it would be nice if ExtractTextSpec added type descritpors itself, because we can forget to set them implicitly :-/   
         YamlSpec.setTypeDescriptors(ExtractTextSpec.class, ExtractTextSpec.getTypeDescriptors());
-        spec = ExtractTextSpec.loadFromStream(specFile, ExtractTextSpec.class);
+        return ExtractTextSpec.loadFromStream(specFile, ExtractTextSpec.class);
     }
 
     static BaseColor colorFromArrayListFloat(ArrayList<Float> color) {
@@ -203,17 +198,20 @@ public class ExtractTexts extends TextEngine {
         return rect2;
     }
 
-    public void stampRects()
+    public void stampRects(Context ctx)
         throws IOException, DocumentException
     {
+        final ExtractTextSpec spec = (ExtractTextSpec)ctx.spec;
+        final TextDump text = ctx.text;
+        final PdfStamper stamper = ctx.stamper;
         stamper.setRotateContents(false);
 
         int i;
-        for (i = 1; i <= text.info.numberOfPages; i++) {
+        for (i = 1; i <= text.getNumberOfPages(); i++) {
             for(Rect rect : spec.rects) {
                 if( rect.page==i ) {
 
-                    PageText rl = text.text[rect.page-1];
+                    PageText rl = text.getPage(rect.page);
                     Rectangle frame = getRectInRotatedCropBoxCoordinates(rl.pageSize, rl.pageRotation, rect.rect);
                     /*
                     Rectangle crop = text.text[i-1].pageSizeRotated;
@@ -243,8 +241,8 @@ public class ExtractTexts extends TextEngine {
 
             while(true) {
                 // Add a new page
-                PageText.Rect media = text.text[0].pageSize;
-                stamper.insertPage(i, new Rectangle(media.getLeft(), media.getBottom(), media.getLeft() + media.getWidth(), media.getBottom() + media.getHeight(), text.text[0].pageRotation ));
+                PageText.Rect media = text.getPage(1).pageSize;
+                stamper.insertPage(i, new Rectangle(media.getLeft(), media.getBottom(), media.getLeft() + media.getWidth(), media.getBottom() + media.getHeight(), text.getPage(1).pageRotation ));
 
                 // Add as much content of the column as possible
                 PdfContentByte canvas = stamper.getOverContent(i);
@@ -260,31 +258,31 @@ public class ExtractTexts extends TextEngine {
     }
 
     @Override
-    public YamlSpec getSpec() {
-        return spec;
-    }
-    @Override
-    public String getStampedOutput() {
-        return spec.stampedOutput;
+    public String getStampedOutput(YamlSpec spec) {
+        return ((ExtractTextSpec)spec).stampedOutput;
     }
 
     @Override
-    public void execute(OutputStream out) throws IOException, DocumentException {
-
+    public void execute(Context ctx, OutputStream out) throws IOException, DocumentException {
+        final ExtractTextSpec spec = (ExtractTextSpec)ctx.spec;
+        final TextDump text = ctx.text;
 
-        spec.additionalInfo = text.info;
-        final int npages = spec.numberOfPages = text.info.numberOfPages;
+        final int npages = spec.numberOfPages = text.getNumberOfPages();
 
         /*
          * Some pages may have no rectangles to find text in. This
          * avoids parsing of pages that are not required.
          */
+        ArrayList<Integer> pages = new ArrayList<Integer>();
+        for(Rect rect : spec.rects )
+            pages.add(rect.page);
+        text.prefetch(pages);
 
         for(Rect rect : spec.rects ) {
 
             if( rect.page>=1 && rect.page<=npages) {
 
-                PageText rl = text.text[rect.page-1];
+                PageText rl = text.getPage(rect.page);
                 Rectangle frame = getRectInRotatedCropBoxCoordinates(rl.pageSize, rl.pageRotation, rect.rect);
                 double l = frame.getLeft();
                 double t = frame.getTop();
@@ -301,28 +299,15 @@ public class ExtractTexts extends TextEngine {
             }
         }
 
-        if( stamper != null ) {
-            stampRects();
+        if( ctx.stamper != null ) {
+            stampRects(ctx);
         }
 
-        DumperOptions options = new DumperOptions();
-        if( spec.yamlOutput!=null && spec.yamlOutput.equals(true)) {
-            // output in yaml mode, useful for testing
-            options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-        }
-        else {
-            // output in json mode
-            options.setDefaultFlowStyle(DumperOptions.FlowStyle.FLOW);
-        }
-        options.setDefaultScalarStyle(DumperOptions.ScalarStyle.PLAIN );
-        options.setPrettyFlow(false);
-        options.setWidth(Integer.MAX_VALUE);
-        Representer representer = new MyRepresenter();
-        representer.setDefaultFlowStyle(DumperOptions.FlowStyle.FLOW);
-        representer.addClassTag(ExtractTextSpec.class,Tag.MAP);
-
-        Yaml yaml = new Yaml(representer, options);
-        String json = yaml.dump(spec);
+        // after the search, so that pages parsed for it are not scanned
+        spec.additionalInfo = text.getInfo();
+
+        // yaml mode is useful for testing, otherwise output is json
+        String json = YamlSpec.dump(spec, spec.yamlOutput!=null && spec.yamlOutput.equals(true));
 
         // We need to force utf-8 encoding here.
         PrintStream ps = new PrintStream((out == null) ? System.out : out, true, "utf-8");
@@ -22,15 +22,10 @@ import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 import java.util.Collections;
 
-import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.TypeDescription;
-import org.yaml.snakeyaml.Yaml;
-import org.yaml.snakeyaml.nodes.Tag;
-import org.yaml.snakeyaml.representer.Representer;
 
 import com.itextpdf.awt.geom.Rectangle2D;
 import com.itextpdf.text.BaseColor;
@@ -80,7 +75,7 @@ class FindTextSpec extends YamlSpec
 
     static private ArrayList<TypeDescription> td = null;
 
-    static public ArrayList<TypeDescription> getTypeDescriptors() {
+    static synchronized public ArrayList<TypeDescription> getTypeDescriptors() {
         if (td == null) {
             td = new ArrayList<TypeDescription>();
             TypeDescription extractTextDesc = new TypeDescription(FindTextSpec.class);
@@ -107,92 +102,77 @@ public class FindTexts extends TextEngine
         if ( needle == null || needle.isEmpty())
             return foundText;
 
-        for (Map.Entry<Integer, ArrayList<ArrayList<CharPos>>> lines: text.getChars().entrySet()) {
-            for (ArrayList<CharPos> line: lines.getValue()) {
-                // 1. match the needle against the current line
-                String str = "";
-                for (CharPos c: line)
-                    str += c.c;
-                str = PageText.fixBiDiText(str).replaceAll(PageText.WHITE_SPACE, "");
-                int i = str.indexOf(needle), j = 0, k = 0;
-                final int k1 = line.size();
-                while (i >= 0) {
-                    // 2. skip the words before the match
-                    while (k < k1) {
-                        final int j1 = j + line.get(k).c.length();
-                        if (j1 > i)
-                            break;
-                        j = j1;
-                        ++k;
-                    }
-                    // 3. collect all the words that made the match
-                    CharPos c0 = line.get(k);
-                    LineSegment base = new LineSegment(new Vector(c0.getX(), c0.getY(), 0.0f), new Vector(c0.getX2(), c0.getY2(), 0.0f));
-                    Rectangle2D bbox = c0.getBounds();
-                    final int j1 = i + needle.length();
-                    for (int jj = j, kk = k; (jj < j1) && (kk < k1); ++kk) {
-                        bbox.add(line.get(kk).getBounds());
-                        jj += line.get(kk).c.length();
-                    }
-                    foundText.add(new CharPos(needle, base, bbox));
-                    // 4. check for the next match
-                    i = str.indexOf(needle, i + 1);
+        for (PageText.Line line: text.getLines()) {
+            // 1. match the needle against the current line
+            String str = PageText.fixBiDiText(line.getText()).replaceAll(PageText.WHITE_SPACE, "");
+            int i = str.indexOf(needle), j = 0, k = line.first();
+            final int k1 = line.end();
+            while (i >= 0) {
+                // 2. skip the words before the match
+                while (k < k1) {
+                    final int j1 = j + text.getTextLength(k);
+                    if (j1 > i)
+                        break;
+                    j = j1;
+                    ++k;
+                }
+                // 3. collect all the words that made the match
+                LineSegment base = new LineSegment(new Vector(text.getX(k), text.getY(k), 0.0f), new Vector(text.getX2(k), text.getY2(k), 0.0f));
+                Rectangle2D bbox = text.getBounds(k);
+                final int j1 = i + needle.length();
+                for (int jj = j, kk = k; (jj < j1) && (kk < k1); ++kk) {
+                    bbox.add(text.getBounds(kk));
+                    jj += text.getTextLength(kk);
                 }
+                foundText.add(new CharPos(needle, base, bbox));
+                // 4. check for the next match
+                i = str.indexOf(needle, i + 1);
             }
         }
         return foundText;
      }
 
     // mark all glyphs
-    public void stampText(Set<Integer> stamped, int iPage) {
-        if ((stamper == null) || (text.text.length < iPage) || stamped.contains(iPage))
+    public void stampText(Context ctx, Set<Integer> stamped, int iPage) throws IOException {
+        if ((ctx.stamper == null) || (ctx.text.getNumberOfPages() < iPage) || stamped.contains(iPage))
             return;
         stamped.add(iPage);
-        PdfContentByte canvas = stamper.getOverContent(iPage);
-        for (Map.Entry<Integer, ArrayList<ArrayList<CharPos>>> lines: text.text[iPage - 1].getChars().entrySet()) {
-            for (ArrayList<CharPos> line: lines.getValue()) {
-                for (CharPos c: line) {
-                    Rectangle frame = new Rectangle(c.getBounds().getBounds());
-                    frame.setBorderColor(new BaseColor(1f, 0f, 1f));
-                    frame.setBorderWidth(0.5f);
-                    frame.setBorder(Rectangle.BOX);
-                    canvas.rectangle(frame);
-                    frame = new Rectangle(c.getX() - 1, c.getY() - 1, c.getX() + 1, c.getY() + 1);
-                    frame.setBorderColor(new BaseColor(0.2f, 0f, 1f));
-                    frame.setBorderWidth(0.3f);
-                    frame.setBorder(Rectangle.BOX);
-                    canvas.rectangle(frame);
-                    frame = new Rectangle(c.getX(), c.getY(), c.getX2(), c.getY2());
-                    frame.setBorderColor(new BaseColor(0.2f, 0f, 1f));
-                    frame.setBorderWidth(0.5f);
-                    frame.setBorder(Rectangle.BOX);
-                    canvas.rectangle(frame);
-                }
-            }
+        PdfContentByte canvas = ctx.stamper.getOverContent(iPage);
+        PageText text = ctx.text.getPage(iPage);
+        for (int g = 0; g < text.getNumberOfGlyphs(); g++) {
+            Rectangle frame = new Rectangle(text.getBounds(g).getBounds());
+            frame.setBorderColor(new BaseColor(1f, 0f, 1f));
+            frame.setBorderWidth(0.5f);
+            frame.setBorder(Rectangle.BOX);
+            canvas.rectangle(frame);
+            frame = new Rectangle(text.getX(g) - 1, text.getY(g) - 1, text.getX(g) + 1, text.getY(g) + 1);
+            frame.setBorderColor(new BaseColor(0.2f, 0f, 1f));
+            frame.setBorderWidth(0.3f);
+            frame.setBorder(Rectangle.BOX);
+            canvas.rectangle(frame);
+            frame = new Rectangle(text.getX(g), text.getY(g), text.getX2(g), text.getY2(g));
+            frame.setBorderColor(new BaseColor(0.2f, 0f, 1f));
+            frame.setBorderWidth(0.5f);
+            frame.setBorder(Rectangle.BOX);
+            canvas.rectangle(frame);
         }
     }
 
-    FindTextSpec spec = null;
-
     @Override
-    public void Init(InputStream specFile) throws IOException {
+    public Object parse(InputStream specFile) throws IOException {
         // TODO: it would be nice if FindTextSpec added type descritpors itself, because we can forget to set them implicitly :-/
         YamlSpec.setTypeDescriptors(FindTextSpec.class, FindTextSpec.getTypeDescriptors());
-        spec = FindTextSpec.loadFromStream(specFile, FindTextSpec.class);
+        return FindTextSpec.loadFromStream(specFile, FindTextSpec.class);
     }
 
     @Override
-    public YamlSpec getSpec() {
-        return spec;
-    }
-    @Override
-    public String getStampedOutput() {
-        return spec.stampedOutput;
+    public String getStampedOutput(YamlSpec spec) {
+        return ((FindTextSpec)spec).stampedOutput;
     }
 
-    private void onTextFound(Match match, CharPos foundText)
+    private void onTextFound(Context ctx, Match match, CharPos foundText) throws IOException
     {
-        PageText.Rect crop = text.text[match.page - 1].pageSizeRotated;
+        PageText.Rect crop = ctx.text.getPage(match.page).pageSizeRotated;
         match.coords = new ArrayList<Double>();
         match.coords.add(new Double((foundText.getX() - crop.getLeft()) / crop.getWidth()));
         match.coords.add(new Double(1 - (foundText.getY() - crop.getBottom()) / crop.getHeight()));
@@ -204,30 +184,43 @@ public class FindTexts extends TextEngine
         match.bbox.add(new Double((rl.foundText.ex - crop.getLeft())/crop.getWidth()));
         match.bbox.add(new Double(1 - (rl.foundText.ey - crop.getBottom())/crop.getHeight()));
         */
-        if( stamper!=null ) {
+        if( ctx.stamper!=null ) {
             Rectangle frame = new Rectangle(foundText.getBounds().getBounds());
             frame.setBorderColor(new BaseColor(0f, 1f, 0f));
             frame.setBorderWidth(2f);
             frame.setBorder(15);
-            stamper.getOverContent(match.page).rectangle(frame);
+            ctx.stamper.getOverContent(match.page).rectangle(frame);
         }
     }
 
     @Override
-    public void execute(OutputStream out) {
-        spec.additionalInfo = text.info;
-        final int pageCount = text.info.numberOfPages;
+    public void execute(Context ctx, OutputStream out) throws IOException {
+        final FindTextSpec spec = (FindTextSpec)ctx.spec;
+        final TextDump text = ctx.text;
+        final int pageCount = text.getNumberOfPages();
         ArrayList<Integer> pages0 = new ArrayList<Integer>(pageCount);
         for ( int i = 0; i < pageCount; ++i )
             pages0.add(i + 1);
 
+        // Pages listed by matches are parsed up front, so that it can be
+        // done in parallel. Searches of the whole document parse pages
+        // one by one and stop at the match, unless all are stamped.
+        ArrayList<Integer> listed = new ArrayList<Integer>();
+        for(Match match : spec.matches ) {
+            ArrayList<Integer> pages = (match.pages != null) ? match.pages : ((ctx.stamper != null) ? pages0 : null);
+            if (pages != null)
+                for (Integer ip : pages)
+                    listed.add((ip < 0) ? pageCount + ip + 1 : ip); // -1 is last page, -2 is second to the last
+        }
+        text.prefetch(listed);
+
         // mark all glyphs in all searched pages
-        if (stamper != null) {
+        if (ctx.stamper != null) {
             Set<Integer> stamped = new HashSet<Integer>();
             for(Match match : spec.matches ) {
                 ArrayList<Integer> pages = (match.pages != null) ? match.pages : pages0;
                 for (Integer ip : pages)
-                    stampText(stamped, (ip < 0) ? pageCount + ip + 1 : ip); // -1 is last page, -2 is second to the last
+                    stampText(ctx, stamped, (ip < 0) ? pageCount + ip + 1 : ip); // -1 is last page, -2 is second to the last
             }
         }
 
@@ -242,10 +235,10 @@ public class FindTexts extends TextEngine
                 for (Integer ip : pages) {
                     final int i = (ip < 0) ? pageCount + ip + 1 : ip; // -1 is last page, -2 is second to the last
                     if (i>=1 && i<=pageCount) {
-                        ArrayList<CharPos> found = find(text.text[i-1], needle);
+                        ArrayList<CharPos> found = find(text.getPage(i), needle);
                         if (index <= found.size()) {
                             match.page = i;
-                            onTextFound(match, found.get(index - 1));
+                            onTextFound(ctx, match, found.get(index - 1));
                             break;
                         } else if (found != null)
                             index = index - found.size();
@@ -259,11 +252,11 @@ public class FindTexts extends TextEngine
                 for (Integer ip : pages) {
                     final int i = (ip < 0) ? pageCount + ip + 1 : ip; // -1 is last page, -2 is second to the last
                     if (i>=1 && i<=pageCount) {
-                        ArrayList<CharPos> found = find(text.text[i-1], needle);
+                        ArrayList<CharPos> found = find(text.getPage(i), needle);
                         Collections.reverse(found);
                         if (index <= found.size()) {
                             match.page = i;
-                            onTextFound(match, found.get(index - 1));
+                            onTextFound(ctx, match, found.get(index - 1));
                             break;
                         } else if (found != null)
                             index = index - found.size();
@@ -271,27 +264,15 @@ public class FindTexts extends TextEngine
                 }
             }
         }
-        printYaml(out);
+        // after the search, so that pages parsed for it are not scanned
+        spec.additionalInfo = text.getInfo();
+        printYaml(spec, out);
     }
 
-    private void printYaml(OutputStream out)
+    private void printYaml(FindTextSpec spec, OutputStream out)
     {
-        DumperOptions options = new DumperOptions();
-        if( spec.yamlOutput!=null && spec.yamlOutput.equals(true)) {
-            // output in yaml mode, useful for testing
-            options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-        } else {
-            // output in json mode
-            options.setDefaultFlowStyle(DumperOptions.FlowStyle.FLOW);
-        }
-        options.setDefaultScalarStyle(DumperOptions.ScalarStyle.PLAIN );
-        options.setPrettyFlow(false);
-        options.setWidth(Integer.MAX_VALUE);
-        Representer representer = new MyRepresenter();
-        representer.setDefaultFlowStyle(DumperOptions.FlowStyle.FLOW);
-        representer.addClassTag(FindTextSpec.class,Tag.MAP);
-        Yaml yaml = new Yaml(representer, options);
-        String json = yaml.dump(spec);
+        // yaml mode is useful for testing, otherwise output is json
+        String json = YamlSpec.dump(spec, spec.yamlOutput!=null && spec.yamlOutput.equals(true));
 
         // We need to force utf-8 encoding here.
         try {
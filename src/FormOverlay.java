@@ -0,0 +1,276 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.ByteBuffer;
+import com.itextpdf.text.pdf.PRStream;
+import com.itextpdf.text.pdf.PdfAnnotation;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfIndirectReference;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfNumber;
+import com.itextpdf.text.pdf.PdfObject;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.parser.PdfContentStreamProcessor;
+import com.itextpdf.text.pdf.parser.RenderListener;
+
+/**
+ * Appearances PdfStamper draws over the pages when it flattens forms and
+ * FreeText annotations, found without changing the document. Parsed after
+ * the content of a page they give the text of the flattened document, so
+ * that it does not have to be written and read again.
+ *
+ * Follows PdfStamper of iText 5.5: printable widgets of fields in the
+ * order of AcroFields, then printable FreeText annotations of the page,
+ * each drawn at the lower left corner of its rectangle, with normal
+ * appearance streams scaled to the rectangle. Where PdfStamper would
+ * generate an appearance or fail create() gives up and the document has
+ * to be flattened.
+ *
+ * Uses the reader it was created for, one thread at a time.
+ */
+class FormOverlay
+{
+    /**
+     * Document can not be flattened this way
+     */
+    private static class Unsupported extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Appearance stream drawn with its lower left corner at x, y
+     */
+    private static class Appearance
+    {
+        final PdfIndirectReference ref;
+        final float x, y;
+
+        Appearance(PdfIndirectReference ref, Rectangle rect)
+        {
+            this.ref = ref;
+            x = rect.getLeft();
+            y = rect.getBottom();
+        }
+    }
+
+    /**
+     * Content drawing the appearances of a page and its resources, null
+     * for pages without any
+     */
+    private final byte[][] content;
+    private final PdfDictionary[] resources;
+
+    private FormOverlay(int pages)
+    {
+        content = new byte[pages][];
+        resources = new PdfDictionary[pages];
+    }
+
+    /**
+     * @return appearances of reader, null if the document has to be
+     * flattened by PdfStamper
+     */
+    public static FormOverlay create(PdfReader reader)
+    {
+        final int n = reader.getNumberOfPages();
+        ArrayList<ArrayList<Appearance>> pages = new ArrayList<ArrayList<Appearance>>(n);
+        for (int i = 0; i < n; i++)
+            pages.add(new ArrayList<Appearance>());
+        // Matrix PdfStamper puts on appearance streams not fitting their
+        // rectangle, the last one wins for streams shared by widgets
+        Map<Long, PdfArray> matrices = new HashMap<Long, PdfArray>();
+        try {
+            for (Map.Entry<String, AcroFields.Item> field : reader.getAcroFields().getFields().entrySet()) {
+                // removed by TextDump.flatten()
+                if (field.getKey().contains("\\") || field.getKey().contains("#"))
+                    continue;
+                AcroFields.Item item = field.getValue();
+                for (int k = 0; k < item.size(); k++) {
+                    final int page = item.getPage(k).intValue();
+                    if (page < 1)
+                        continue;
+                    PdfDictionary merged = item.getMerged(k);
+                    PdfDictionary appDic = merged.getAsDict(PdfName.AP);
+                    // missing appearances are generated
+                    if ((appDic == null) || ((appDic.getAsStream(PdfName.N) == null) && (appDic.getAsDict(PdfName.N) == null)))
+                        throw new Unsupported();
+                    PdfArray rect = merged.getAsArray(PdfName.RECT);
+                    PdfStream stream = appDic.getAsStream(PdfName.N);
+                    if ((stream != null) && (rect != null) && (stream.getAsArray(PdfName.BBOX) != null)) {
+                        if (!(appDic.get(PdfName.N) instanceof PdfIndirectReference))
+                            throw new Unsupported();
+                        PdfArray bbox = stream.getAsArray(PdfName.BBOX);
+                        final float widthCoef = scale(coord(rect, 2) - coord(rect, 0), coord(bbox, 2) - coord(bbox, 0));
+                        final float heightCoef = scale(coord(rect, 3) - coord(rect, 1), coord(bbox, 3) - coord(bbox, 1));
+                        if ((widthCoef != 1) || (heightCoef != 1))
+                            matrices.put(key((PdfIndirectReference)appDic.get(PdfName.N)), matrix(widthCoef, heightCoef));
+                    }
+                    add(pages.get(page - 1), merged, appDic);
+                }
+            }
+            for (int i = 1; i <= n; i++) {
+                PdfArray annots = reader.getPageN(i).getAsArray(PdfName.ANNOTS);
+                if (annots == null)
+                    continue;
+                for (int j = 0; j < annots.size(); j++) {
+                    PdfObject obj = annots.getDirectObject(j);
+                    if (!(obj instanceof PdfDictionary))
+                        continue;
+                    PdfDictionary annot = (PdfDictionary)obj;
+                    if (annot.get(PdfName.SUBTYPE) == null)
+                        throw new Unsupported();
+                    if (!annot.get(PdfName.SUBTYPE).equals(PdfName.FREETEXT) || (annot.get(PdfName.AP) == null))
+                        continue;
+                    PdfObject appDic = PdfReader.getPdfObject(annot.get(PdfName.AP));
+                    if (!(appDic instanceof PdfDictionary))
+                        throw new Unsupported();
+                    add(pages.get(i - 1), annot, (PdfDictionary)appDic);
+                }
+            }
+
+            FormOverlay overlay = new FormOverlay(n);
+            Map<Long, PRStream> forms = new HashMap<Long, PRStream>();
+            for (int i = 0; i < n; i++) {
+                if (pages.get(i).isEmpty())
+                    continue;
+                ByteBuffer content = new ByteBuffer();
+                PdfDictionary xobjects = new PdfDictionary();
+                int count = 0;
+                for (Appearance a : pages.get(i)) {
+                    PdfName name = new PdfName("Fm" + (++count));
+                    xobjects.put(name, form(a.ref, forms, matrices));
+                    // as PdfContentByte.addTemplate() writes it
+                    content.append("q 1 0 0 1 ").append(a.x).append(' ').append(a.y).append(" cm ");
+                    content.append(name.getBytes()).append(" Do Q\n");
+                }
+                overlay.content[i] = content.toByteArray();
+                overlay.resources[i] = new PdfDictionary();
+                overlay.resources[i].put(PdfName.XOBJECT, xobjects);
+            }
+            return overlay;
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    /**
+     * Adds the appearance of an annotation if PdfStamper draws it
+     */
+    private static void add(ArrayList<Appearance> page, PdfDictionary annot, PdfDictionary appDic) throws Unsupported
+    {
+        PdfNumber ff = annot.getAsNumber(PdfName.F);
+        final int flags = (ff != null) ? ff.intValue() : 0;
+        if (((flags & PdfAnnotation.FLAGS_PRINT) == 0) || ((flags & PdfAnnotation.FLAGS_HIDDEN) != 0))
+            return;
+        PdfObject obj = appDic.get(PdfName.N);
+        PdfObject objReal = PdfReader.getPdfObject(obj);
+        PdfObject ref = null;
+        if (objReal instanceof PdfStream) {
+            ref = obj;
+        } else if ((objReal != null) && objReal.isDictionary()) {
+            PdfName as = annot.getAsName(PdfName.AS);
+            if (as != null)
+                ref = ((PdfDictionary)objReal).get(as);
+        }
+        if (ref == null)
+            return;
+        // PdfStamper fails on direct streams
+        if (!(ref instanceof PdfIndirectReference))
+            throw new Unsupported();
+        PdfArray rect = annot.getAsArray(PdfName.RECT);
+        for (int i = 0; i < 4; i++)
+            coord(rect, i);
+        page.add(new Appearance((PdfIndirectReference)ref, PdfReader.getNormalizedRectangle(rect)));
+    }
+
+    private static float coord(PdfArray a, int i) throws Unsupported
+    {
+        PdfNumber v = ((a != null) && (i < a.size())) ? a.getAsNumber(i) : null;
+        if (v == null)
+            throw new Unsupported();
+        return v.floatValue();
+    }
+
+    private static float scale(float rect, float bbox)
+    {
+        return Math.abs((bbox != 0) ? rect / bbox : Float.MAX_VALUE);
+    }
+
+    /**
+     * Matrix as read back from the flattened document
+     */
+    private static PdfArray matrix(float widthCoef, float heightCoef)
+    {
+        PdfArray matrix = new PdfArray();
+        matrix.add(new PdfNumber(ByteBuffer.formatDouble(widthCoef)));
+        matrix.add(new PdfNumber(0));
+        matrix.add(new PdfNumber(0));
+        matrix.add(new PdfNumber(ByteBuffer.formatDouble(heightCoef)));
+        matrix.add(new PdfNumber(0));
+        matrix.add(new PdfNumber(0));
+        return matrix;
+    }
+
+    private static Long key(PdfIndirectReference ref)
+    {
+        return Long.valueOf(((long)ref.getNumber() << 32) | ref.getGeneration());
+    }
+
+    /**
+     * Copy of the appearance stream as PdfStamper writes it, a form with
+     * its Matrix. The document itself is not changed.
+     */
+    private static PRStream form(PdfIndirectReference ref, Map<Long, PRStream> forms, Map<Long, PdfArray> matrices) throws Unsupported
+    {
+        final Long key = key(ref);
+        PRStream form = forms.get(key);
+        if (form == null) {
+            PdfObject obj = PdfReader.getPdfObject(ref);
+            if (!(obj instanceof PRStream))
+                throw new Unsupported();
+            PdfDictionary dict = new PdfDictionary();
+            dict.putAll((PRStream)obj);
+            dict.put(PdfName.SUBTYPE, PdfName.FORM);
+            if (matrices.containsKey(key))
+                dict.put(PdfName.MATRIX, matrices.get(key));
+            form = new PRStream((PRStream)obj, dict);
+            forms.put(key, form);
+        }
+        return form;
+    }
+
+    /**
+     * Parses appearances drawn over a page
+     *
+     * @param iPage  page number from 1
+     */
+    public void processPage(int iPage, RenderListener listener)
+    {
+        if (content[iPage - 1] != null)
+            new PdfContentStreamProcessor(listener).processContent(content[iPage - 1], resources[iPage - 1]);
+    }
+}
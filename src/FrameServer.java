@@ -0,0 +1,441 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps one JVM resident and runs commands sent as length-prefixed
+ * frames, over standard input and output or a Unix domain socket.
+ *
+ * All integers are 32 bit big endian. A request frame is:
+ *
+ *   id, command length, command (UTF-8), spec length, spec, pdf length, pdf
+ *
+ * and its response frame is:
+ *
+ *   id, status, result length, result
+ *
+ * Status is 200 for success, otherwise 400, 413 or 504 as over HTTP and
+ * the result is the error message. Frames larger than --max-frame are
+ * skipped and answered with 413. Requests of a connection run in
+ * parallel, responses are sent as they finish and matched by id.
+ */
+public class FrameServer
+{
+    public static final String USAGE = "java -jar scrivepdftools.jar (serve-stdio | serve-unix path) [-t threads] [--max-frame megabytes]";
+
+    /**
+     * Largest command name accepted, longer means a broken stream
+     */
+    static final int MAX_COMMAND = 256;
+
+    final ExecutorService pool;
+    final int threads;
+
+    /**
+     * Bytes of spec and pdf a frame may have at most, no more than the
+     * frame budget
+     */
+    final long maxFrame;
+
+    /**
+     * Heap taken by frames read and not answered yet, half of the maximum
+     * heap. Reading waits until a frame fits, so that clients can not
+     * make the server allocate more than it has.
+     */
+    final MemoryBudget frames = new MemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+
+    FrameServer(int threads, long maxFrame)
+    {
+        this.threads = threads;
+        this.maxFrame = Math.min(maxFrame, (long)frames.total << 10);
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "frame-worker-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        final boolean unix = args[0].equals("serve-unix");
+        String path = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxFrame = 256;
+        int i = 1;
+        if (unix) {
+            if (args.length < 2)
+                throw new IllegalArgumentException("Missing socket path");
+            path = args[i++];
+        }
+        for (; i < args.length; i++) {
+            if (args[i].equals("-t"))
+                threads = ServerOptions.number(ServerOptions.value(args, ++i, args[i - 1]), "number of threads");
+            else if (args[i].equals("--max-frame"))
+                maxFrame = ServerOptions.number(ServerOptions.value(args, ++i, args[i - 1]), "maximum frame size");
+            else
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+        }
+        if (threads < 1)
+            throw new IllegalArgumentException("Invalid number of threads: " + threads);
+        FrameServer server = new FrameServer(threads, maxFrame * 1024L * 1024L);
+        if (unix) {
+            server.serveUnix(path);
+        } else {
+            // frames own standard output, anything printed goes to standard error
+            OutputStream out = new FileOutputStream(FileDescriptor.out);
+            System.setOut(System.err);
+            server.serve(System.in, out);
+        }
+    }
+
+    /**
+     * Serves one connection until its input ends and all its requests
+     * are answered
+     */
+    void serve(InputStream input, OutputStream output) throws IOException
+    {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(input, 65536));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 65536));
+        // bounds requests held in memory, reading stops until one finishes
+        final Semaphore inFlight = new Semaphore(2 * threads);
+        try {
+            while (true) {
+                final int id;
+                try {
+                    id = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                final Frame frame = read(in, id);
+                if (frame.refused != null) {
+                    frames.release(frame.cost);
+                    refuse(out, frame.id, frame.command, frame.refused);
+                    continue;
+                }
+                inFlight.acquireUninterruptibly();
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            respond(out, frame.id, frame.command, frame.spec, frame.pdf);
+                        } finally {
+                            frames.release(frame.cost);
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            // answer what was read before closing
+            inFlight.acquireUninterruptibly(2 * threads);
+            out.close();
+        }
+    }
+
+    /**
+     * Request frame and the kilobytes of the frame budget it holds
+     */
+    private static class Frame
+    {
+        int id;
+        String command;
+        byte[] spec, pdf;
+        long cost = 0;
+
+        /**
+         * Why the frame is not run, its fields were skipped
+         */
+        String refused = null;
+    }
+
+    /**
+     * Reads the rest of a frame, its fields are skipped when the frame is
+     * too large
+     */
+    private Frame read(DataInputStream in, int id) throws IOException
+    {
+        Frame frame = new Frame();
+        frame.id = id;
+        frame.command = new String(readField(in, MAX_COMMAND), "UTF-8");
+        try {
+            frame.spec = readField(in, frame, maxFrame);
+            frame.pdf = readField(in, frame, maxFrame - ((frame.spec != null) ? frame.spec.length : 0));
+        } catch (IOException e) {
+            frames.release(frame.cost);
+            throw e;
+        }
+        return frame;
+    }
+
+    /**
+     * Allocates a field only within max bytes and once it fits in the
+     * frame budget. Fields that could not fit beside the rest of their
+     * frame are refused, waiting for them would never end while the rest
+     * is held.
+     * @return field or null when skipped
+     */
+    private byte[] readField(DataInputStream in, Frame frame, long max) throws IOException
+    {
+        final int n = readLength(in, Integer.MAX_VALUE);
+        if ((frame.refused == null) && (n > max))
+            frame.refused = "Frame is larger than " + (maxFrame >> 20) + " MB";
+        if ((frame.refused == null) && (frame.cost + cost(n) > frames.total))
+            frame.refused = new MemoryBudget.TooLargeException(frame.cost + cost(n), frames.total).getMessage();
+        if (frame.refused == null) {
+            frames.acquire(cost(n));
+            frame.cost += cost(n);
+        }
+        if (frame.refused != null) {
+            skip(in, n);
+            return null;
+        }
+        byte[] data = new byte[n];
+        in.readFully(data);
+        return data;
+    }
+
+    private static int readLength(DataInputStream in, int max) throws IOException
+    {
+        final int n = in.readInt();
+        if ((n < 0) || (n > max))
+            throw new IOException("Invalid frame field length: " + n);
+        return n;
+    }
+
+    private static byte[] readField(DataInputStream in, int max) throws IOException
+    {
+        byte[] data = new byte[readLength(in, max)];
+        in.readFully(data);
+        return data;
+    }
+
+    /**
+     * Skips a field not to be held, so that the next frame can be read
+     */
+    private static void skip(DataInputStream in, int n) throws IOException
+    {
+        // skip() fails on pipes
+        byte[] buf = new byte[Math.min(n, 65536)];
+        while (n > 0) {
+            final int k = Math.min(n, buf.length);
+            in.readFully(buf, 0, k);
+            n -= k;
+        }
+    }
+
+    /**
+     * @return kilobytes of the frame budget a field takes
+     */
+    private static long cost(int length)
+    {
+        return (length + 1023L) >> 10;
+    }
+
+    /**
+     * Answers a frame that was skipped with 413
+     */
+    private void refuse(DataOutputStream out, int id, String command, String message)
+    {
+        Metrics.Request r = new Metrics.Request(command);
+        r.status = "413";
+        r.error = message;
+        r.finish();
+        try {
+            send(out, id, 413, message.getBytes("UTF-8"));
+        } catch (IOException e) {
+            System.err.println("Error: Failed to send response " + id + ": " + e.getMessage());
+        }
+    }
+
+    private static void send(DataOutputStream out, int id, int status, byte[] result) throws IOException
+    {
+        synchronized (out) {
+            out.writeInt(id);
+            out.writeInt(status);
+            out.writeInt(result.length);
+            out.write(result);
+            out.flush();
+        }
+    }
+
+    private void respond(DataOutputStream out, int id, String command, byte[] spec, byte[] pdf)
+    {
+        Metrics.Request r = new Metrics.Request(command);
+        r.bytesIn = spec.length + pdf.length;
+        int status = 200;
+        byte[] result;
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            WebServer.execute(command, new WebServer.Part(spec), new WebServer.Part(pdf), buf);
+            r.executed();
+            result = buf.toByteArray();
+        } catch (Exception e) {
+            status = WebServer.errorStatus(e);
+            if (status == 400)
+                e.printStackTrace(System.err);
+            r.error = String.valueOf(e.getMessage());
+            try {
+                result = r.error.getBytes("UTF-8");
+            } catch (IOException e2) {
+                result = new byte[0];
+            }
+        }
+        r.status = String.valueOf(status);
+        r.bytesOut = result.length;
+        r.finish();
+        try {
+            send(out, id, status, result);
+        } catch (IOException e) {
+            // client went away, nothing to answer to
+            System.err.println("Error: Failed to send response " + id + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Listens on a Unix domain socket, each connection is served on its
+     * own thread. Unix domain sockets are available from Java 16, they
+     * are reached by reflection so that the code still builds for older
+     * versions.
+     */
+    void serveUnix(String path) throws IOException
+    {
+        final ServerSocketChannel server;
+        try {
+            Object address = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+            Class<?> family = Class.forName("java.net.StandardProtocolFamily");
+            Object unix = family.getField("UNIX").get(null);
+            server = (ServerSocketChannel)ServerSocketChannel.class.getMethod("open", Class.forName("java.net.ProtocolFamily")).invoke(null, unix);
+            new File(path).delete();
+            ServerSocketChannel.class.getMethod("bind", SocketAddress.class).invoke(server, address);
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unix domain sockets require Java 16 or later");
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            IOException io = new IOException("Failed to listen on " + path + ": " + e.getCause().getMessage());
+            io.initCause(e.getCause());
+            throw io;
+        } catch (Exception e) {
+            IOException io = new IOException("Failed to listen on " + path);
+            io.initCause(e);
+            throw io;
+        }
+        new File(path).deleteOnExit();
+        System.err.println("Serving frames on " + path + " with " + threads + " threads");
+        int connections = 0;
+        while (true) {
+            final SocketChannel ch = server.accept();
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        serve(new ChannelInput(ch), new ChannelOutput(ch));
+                    } catch (IOException e) {
+                        System.err.println("Error: Connection failed: " + e.getMessage());
+                    } finally {
+                        try {
+                            ch.close();
+                        } catch (IOException e) {
+                            // already closed
+                        }
+                    }
+                }
+            }, "frame-connection-" + (++connections));
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Reads from a channel. Channels.newInputStream() holds the blocking
+     * lock of the channel while reading, which would block responses
+     * written from other threads.
+     */
+    static class ChannelInput extends InputStream
+    {
+        final SocketChannel ch;
+
+        ChannelInput(SocketChannel ch)
+        {
+            this.ch = ch;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return ch.read(ByteBuffer.wrap(b, off, len));
+        }
+    }
+
+    static class ChannelOutput extends OutputStream
+    {
+        final SocketChannel ch;
+
+        ChannelOutput(SocketChannel ch)
+        {
+            this.ch = ch;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining())
+                ch.write(buf);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            ch.shutdownOutput();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Asynchronous jobs and their results kept on disk. Finished jobs are
+ * removed after a time to live, and oldest first when results take more
+ * than the size limit. Jobs that did not finish yet are never removed.
+ *
+ * Servers may share the job directory, each keeps its results in its own
+ * locked host-pid directory in it. Jobs live only in memory, so results
+ * left by servers that ended are removed when a store opens, also those
+ * of a previous run with the same host and pid, as in containers.
+ */
+public class JobStore
+{
+    public static final String QUEUED = "queued";
+    public static final String RUNNING = "running";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    public static class Job
+    {
+        final String id = UUID.randomUUID().toString();
+        final String command;
+        final String pdfName;
+        final File result;
+        final long created = System.currentTimeMillis();
+        volatile String status = QUEUED;
+        volatile String error = null;
+        volatile String mime = null;
+        volatile long size = 0;
+        volatile long finished = 0;
+
+        Job(String command, String pdfName, File dir)
+        {
+            this.command = command;
+            this.pdfName = pdfName;
+            this.result = new File(dir, id + ".result");
+        }
+
+        boolean isFinished()
+        {
+            return (status == DONE) || (status == FAILED);
+        }
+    }
+
+    /**
+     * Directory of this store
+     */
+    final File dir;
+    final long ttl;
+    final long limit;
+    private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private long size = 0;
+
+    /**
+     * Kept referenced, so that its file is not closed and unlocked
+     */
+    private final FileLock lock;
+
+    /**
+     * @param shared  where results are kept, created if missing
+     * @param ttl     milliseconds a finished job is kept
+     * @param limit   bytes of results kept at most
+     */
+    JobStore(File shared, long ttl, long limit) throws IOException
+    {
+        dir = new File(shared, OwnedDirectory.ownerName());
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can not create job directory: " + dir);
+        lock = OwnedDirectory.lock(dir);
+        if (lock == null)
+            throw new IOException("Job directory is used by another store: " + dir);
+        removeLeftovers(shared, ttl);
+        this.ttl = ttl;
+        this.limit = limit;
+        final Timer timer = new Timer("job-eviction", true);
+        final long period = Math.max(1000, Math.min(ttl / 2, 60 * 1000));
+        timer.schedule(new TimerTask() {
+            public void run() {
+                evict();
+            }
+        }, period, period);
+    }
+
+    /**
+     * Removes results of a previous run in our own directory, directories
+     * of stores that ended and results kept directly in the shared
+     * directory by older versions, once expired
+     */
+    private void removeLeftovers(File shared, long ttl) throws IOException
+    {
+        int removed = 0;
+        File[] own = dir.listFiles();
+        for (File f : (own != null) ? own : new File[0])
+            if (!f.getName().equals(OwnedDirectory.LOCK) && f.delete())
+                removed++;
+        if (removed > 0)
+            System.out.println("Jobs: Removed " + removed + " results left in " + dir);
+        File[] files = shared.listFiles();
+        if (files == null)
+            return;
+        final long now = System.currentTimeMillis();
+        for (File f : files) {
+            if (f.isFile() && f.getName().endsWith(".result")) {
+                if (now - f.lastModified() > ttl)
+                    f.delete();
+                continue;
+            }
+            // locking our own again would unlock it when closed
+            if (!f.isDirectory() || f.equals(dir) || !new File(f, OwnedDirectory.LOCK).isFile())
+                continue;
+            FileLock other = OwnedDirectory.lock(f);
+            if (other == null)
+                continue;
+            removed = OwnedDirectory.remove(f, other);
+            System.out.println("Jobs: Removed " + removed + " results left in " + f);
+        }
+    }
+
+    Job create(String command, String pdfName)
+    {
+        Job job = new Job(command, pdfName, dir);
+        jobs.put(job.id, job);
+        return job;
+    }
+
+    Job get(String id)
+    {
+        return jobs.get(id);
+    }
+
+    /**
+     * Called when job is done or failed and its result file is complete
+     * @param status  DONE or FAILED
+     */
+    void finished(Job job, String status)
+    {
+        synchronized (this) {
+            job.finished = System.currentTimeMillis();
+            job.status = status;
+            if (!jobs.containsKey(job.id)) {
+                // removed while running
+                job.result.delete();
+                return;
+            }
+            size += job.size;
+        }
+        evict();
+    }
+
+    /**
+     * Removes job and its result. Unfinished jobs are only forgotten,
+     * their result is removed when they finish.
+     */
+    synchronized void remove(Job job)
+    {
+        if (jobs.remove(job.id) == null)
+            return;
+        if (job.isFinished()) {
+            size -= job.size;
+            job.result.delete();
+        }
+    }
+
+    synchronized void evict()
+    {
+        final long now = System.currentTimeMillis();
+        ArrayList<Job> finished = new ArrayList<Job>();
+        for (Job job : jobs.values()) {
+            if (!job.isFinished() || (job.finished == 0))
+                continue;
+            if (now - job.finished > ttl)
+                remove(job);
+            else
+                finished.add(job);
+        }
+        if (size <= limit)
+            return;
+        Collections.sort(finished, new Comparator<Job>() {
+            public int compare(Job a, Job b) {
+                return (a.finished < b.finished) ? -1 : ((a.finished == b.finished) ? 0 : 1);
+            }
+        });
+        for (Job job : finished) {
+            if (size <= limit)
+                break;
+            remove(job);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.itextpdf.awt.geom.Rectangle2D;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.parser.LineSegment;
+import com.itextpdf.text.pdf.parser.PdfReaderContentParser;
+import com.itextpdf.text.pdf.parser.Vector;
+
+/**
+ * Compares line building of PageText with the linear scans it used
+ * before, on synthetic dense pages and on the pages of PDFs given. Lines
+ * have to be identical, times are the best of several rounds and do not
+ * include parsing. Also compares heap held by lines of CharPos, as built,
+ * and by the compact PageText.
+ */
+public class LineBenchmark
+{
+    public static final String USAGE = "java -cp scrivepdftools.jar LineBenchmark [file.pdf ...]";
+
+    static final int ROUNDS = 10;
+
+    /**
+     * Arguments of one PageText.addChar() call
+     */
+    static class Glyph
+    {
+        final String c;
+        final LineSegment base;
+        final Rectangle2D bbox;
+
+        Glyph(String c, LineSegment base, Rectangle2D bbox)
+        {
+            this.c = c;
+            this.base = base;
+            this.bbox = bbox;
+        }
+    }
+
+    /**
+     * Records glyphs instead of building lines
+     */
+    static class Recorder extends PageText
+    {
+        private static final long serialVersionUID = 1L;
+
+        final ArrayList<Glyph> glyphs = new ArrayList<Glyph>();
+
+        @Override
+        public void addChar(String c, LineSegment base, Rectangle2D bbox)
+        {
+            glyphs.add(new Glyph(c, base, bbox));
+        }
+    }
+
+    /**
+     * Line building as it was, each glyph scans lines and then glyphs of
+     * its line from the start
+     */
+    static class ScanLines
+    {
+        final TreeMap<Integer, ArrayList<ArrayList<CharPos>>> lines = new TreeMap<Integer, ArrayList<ArrayList<CharPos>>>();
+
+        void addChar(String c, LineSegment base, Rectangle2D bbox)
+        {
+            if (c.codePointAt(0) >= 32) {
+                CharPos cp = new CharPos(c, base, bbox);
+                if (cp.isHorizontal() || cp.isVertical())
+                    addChar(cp);
+            }
+        }
+
+        private boolean addChar(CharPos cp)
+        {
+            final int dir = (int)(1000.0 * Math.atan2(cp.getBaseY(), cp.getBaseX()) + 0.5);
+            ArrayList<ArrayList<CharPos>> lines = this.lines.get(dir);
+            if (lines == null) {
+                lines = new ArrayList<ArrayList<CharPos>>();
+                this.lines.put(dir, lines);
+            }
+            ArrayList<CharPos> best = null;
+            int i = 0, p = 1;
+            for (; (i < lines.size()) && (p > 0); ++i) {
+                final CharPos c1 = lines.get(i).get(0);
+                final float h = (float)(c1.isHorizontal() ? c1.getBounds().getHeight() : c1.getBounds().getWidth());
+                final float tol = 0.36f * h;
+                p = CharPos.cmp(c1.cmpLine(cp), tol);
+            }
+            if (p <= 0)
+                --i;
+            if (p == 0) {
+                best = lines.get(i);
+            } else {
+                best = new ArrayList<CharPos>();
+                lines.add(i, best);
+                best.add(cp);
+                return true;
+            }
+            p = 1;
+            for (i = 0; (i < best.size()) && (p > 0); ++i)
+                p = best.get(i).cmpOrder(cp);
+            if (0 == p)
+                return false;
+            if (p < 0)
+                --i;
+            final CharPos pred = (i > 0) ? best.get(i - 1) : null;
+            if ((pred == null) || cp.detectSpace(pred))
+                best.add(i, cp);
+            else
+                pred.merge(cp);
+            return true;
+        }
+    }
+
+    /**
+     * Bounding boxes grow when glyphs merge, so every run gets copies
+     */
+    static Rectangle2D copy(Rectangle2D r)
+    {
+        return (Rectangle2D)r.clone();
+    }
+
+    static PageText search(ArrayList<Glyph> glyphs)
+    {
+        PageText page = new PageText();
+        for (Glyph g : glyphs)
+            page.addChar(g.c, g.base, copy(g.bbox));
+        page.compact();
+        return page;
+    }
+
+    static TreeMap<Integer, ArrayList<ArrayList<CharPos>>> scan(ArrayList<Glyph> glyphs)
+    {
+        ScanLines lines = new ScanLines();
+        for (Glyph g : glyphs)
+            lines.addChar(g.c, g.base, copy(g.bbox));
+        return lines.lines;
+    }
+
+    static boolean same(CharPos a, PageText page, int g)
+    {
+        return a.c.equals(page.getText(g)) && (a.getX() == page.getX(g)) && (a.getY() == page.getY(g)) &&
+            (a.getBaseX() == page.getBaseX(g)) && (a.getBaseY() == page.getBaseY(g)) &&
+            a.getBounds().equals(page.getBounds(g)) && a.getBaseLineBounds().equals(page.getBaseLineBounds(g));
+    }
+
+    static boolean same(TreeMap<Integer, ArrayList<ArrayList<CharPos>>> a, PageText b)
+    {
+        Iterator<PageText.Line> lb = b.getLines().iterator();
+        for (Map.Entry<Integer, ArrayList<ArrayList<CharPos>>> dir : a.entrySet()) {
+            for (ArrayList<CharPos> la : dir.getValue()) {
+                if (!lb.hasNext())
+                    return false;
+                PageText.Line line = lb.next();
+                if ((line.getDirection() != dir.getKey()) || (line.size() != la.size()))
+                    return false;
+                int g = line.first();
+                for (CharPos c : la)
+                    if (!same(c, b, g++))
+                        return false;
+            }
+        }
+        return !lb.hasNext();
+    }
+
+    static long usedMemory()
+    {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    /**
+     * Heap held by lines of all pages, as lines of CharPos or compact.
+     * Small documents are held several times over, to measure above noise.
+     */
+    static long retained(ArrayList<ArrayList<Glyph>> pages, int glyphs, boolean compact)
+    {
+        final int copies = Math.max(1, 500000 / Math.max(glyphs, 1));
+        ArrayList<Object> held = new ArrayList<Object>(copies * pages.size());
+        final long before = usedMemory();
+        for (int i = 0; i < copies; i++)
+            for (ArrayList<Glyph> page : pages)
+                held.add(compact ? search(page) : scan(page));
+        final long after = usedMemory();
+        return (held.size() > 0) ? (after - before) / copies : 0;
+    }
+
+    /**
+     * Glyphs of a page of small print, rows by columns, in reading order,
+     * column by column as tables are often written, or right to left
+     */
+    static ArrayList<Glyph> densePage(int rows, int columns, String order)
+    {
+        ArrayList<Glyph> glyphs = new ArrayList<Glyph>(rows * columns);
+        for (int k = 0; k < rows * columns; k++) {
+            int r = k / columns, c = k % columns;
+            if (order.equals("columns")) {
+                r = k % rows;
+                c = k / rows;
+            } else if (order.equals("reversed")) {
+                c = columns - 1 - c;
+            }
+            // narrow gaps every 4 glyphs, so that there are merges too
+            final float x = 10 + c * 5.5f - ((c % 4 == 0) ? 0 : 1.2f * (c % 4)), y = 800 - r * 7f;
+            glyphs.add(new Glyph(String.valueOf((char)('a' + (k % 26))), new LineSegment(new Vector(x, y, 1), new Vector(x + 4, y, 1)),
+                                 new Rectangle2D.Float(x, y - 1, 4, 5)));
+        }
+        return glyphs;
+    }
+
+    /**
+     * @return false if lines differ
+     */
+    static boolean run(String name, ArrayList<ArrayList<Glyph>> pages)
+    {
+        int glyphs = 0;
+        boolean same = true;
+        for (ArrayList<Glyph> page : pages) {
+            glyphs += page.size();
+            same = same && same(scan(page), search(page));
+        }
+        long scanTime = Long.MAX_VALUE, searchTime = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (ArrayList<Glyph> page : pages)
+                scan(page);
+            scanTime = Math.min(scanTime, System.nanoTime() - start);
+            start = System.nanoTime();
+            for (ArrayList<Glyph> page : pages)
+                search(page);
+            searchTime = Math.min(searchTime, System.nanoTime() - start);
+        }
+        final long linesMemory = retained(pages, glyphs, false), compactMemory = retained(pages, glyphs, true);
+        System.out.println(String.format("%-40s %7d glyphs  scan %9.2f ms  search %9.2f ms  heap %7d KB -> %6d KB  %s", name, glyphs,
+                                         scanTime / 1e6, searchTime / 1e6, linesMemory / 1024, compactMemory / 1024,
+                                         same ? "same lines" : "LINES DIFFER"));
+        return same;
+    }
+
+    static ArrayList<ArrayList<Glyph>> pages(String file) throws IOException
+    {
+        PdfReader reader = new PdfReader(file);
+        ArrayList<ArrayList<Glyph>> pages = new ArrayList<ArrayList<Glyph>>();
+        try {
+            PdfReaderContentParser parser = new PdfReaderContentParser(reader);
+            for (int i = 1; i <= reader.getNumberOfPages(); i++) {
+                Recorder page = new Recorder();
+                try {
+                    parser.processContent(i, new PageText.PageTextRenderListener(page));
+                } catch (Exception e) {
+                    // text extraction fails on such a page too
+                    System.err.println("Warning: " + file + ": page " + i + " skipped: " + e.getMessage());
+                    continue;
+                }
+                pages.add(page.glyphs);
+            }
+        } finally {
+            reader.close();
+        }
+        return pages;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        PdfReader.unethicalreading = true;
+        // so that the first rows are not timed while the JIT compiles
+        for (int round = 0; round < ROUNDS; round++) {
+            scan(densePage(100, 100, "reading"));
+            search(densePage(100, 100, "reading"));
+        }
+        boolean same = true;
+        for (String order : new String[] {"reading", "columns", "reversed"}) {
+            for (int rows = 10; rows <= 640; rows *= 4) {
+                ArrayList<ArrayList<Glyph>> pages = new ArrayList<ArrayList<Glyph>>();
+                pages.add(densePage(rows, 100, order));
+                same = run("dense " + rows + "x100 " + order, pages) && same;
+            }
+        }
+        for (String file : args)
+            same = run(file, pages(file)) && same;
+        if (!same)
+            System.exit(1);
+    }
+}
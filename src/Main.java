@@ -18,9 +18,14 @@
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.SocketException;
 import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.itextpdf.text.DocumentException;
 
@@ -31,21 +36,49 @@ public class Main
     	return (null == url) ? res : url.toString();
 	}
 
+	public static InputStream getResourceAsStream(String res) throws IOException {
+    	InputStream in = Main.class.getResourceAsStream(res);
+    	return (null == in) ? new FileInputStream(res) : in;
+	}
+
+    /**
+     * Commands and their engine classes. Engines are loaded by name, so
+     * that a command loads only its own engine and its dependencies.
+     * Engines keep no state between runs, a single instance of each is
+     * shared by all threads.
+     */
+    static final String[][] ENGINES = {
+        {"add-verification-pages", "AddVerificationPages"},
+        {"find-texts", "FindTexts"},
+        {"extract-texts", "ExtractTexts"},
+        {"normalize", "Normalize"},
+        {"remove-javascript", "RemoveJavaScript"},
+        {"select-and-clip", "SelectAndClip"},
+        {"remove-scrive-elements", "RemoveScriveElements"},
+        {"pipeline", "Pipeline"}
+    };
+
+    static final ConcurrentMap<String, Engine> engines = new ConcurrentHashMap<String, Engine>();
+
     public static Engine getEngine(String command) {
-        if( command.equals("add-verification-pages"))
-            return new AddVerificationPages();
-        else if( command.equals("find-texts"))
-            return new FindTexts();
-        else if( command.equals("extract-texts"))
-            return new ExtractTexts();
-        else if( command.equals("normalize"))
-            return new Normalize();
-        else if( command.equals("remove-javascript"))
-            return new RemoveJavaScript();
-        else if( command.equals("select-and-clip"))
-            return new SelectAndClip();
-        else if( command.equals("remove-scrive-elements"))
-            return new RemoveScriveElements();
+        Engine engine = engines.get(command);
+        if (engine != null)
+            return engine;
+        for (String[] e : ENGINES) {
+            if (e[0].equals(command)) {
+                try {
+                    engine = (Engine)Class.forName(e[1]).getDeclaredConstructor().newInstance();
+                    com.itextpdf.text.pdf.PdfReader.unethicalreading = true;
+                    Engine engine2 = engines.putIfAbsent(command, engine);
+                    return (engine2 != null) ? engine2 : engine;
+                } catch (java.lang.reflect.InvocationTargetException ex) {
+                    // the constructor failed, report why
+                    throw new RuntimeException("Failed to load engine " + e[1], ex.getCause());
+                } catch (Exception ex) {
+                    throw new RuntimeException("Failed to load engine " + e[1], ex);
+                }
+            }
+        }
         System.err.println("Error: Uknown command: " + command);
         return null;
     }
@@ -53,24 +86,45 @@ public class Main
     public byte[] execute(String command, byte[] spec, byte[] pdf)
         throws IOException, DocumentException
     {
-        Engine engine = getEngine(command);
-        if (null == engine)
-            return null;
+        return execute(command, new ByteArrayInputStream(spec), new ByteArrayInputStream(pdf));
+    }
+
+    /**
+     * Pass Engine.FileStream as pdf to let the engine map the file
+     * instead of reading it to memory.
+     */
+    public byte[] execute(String command, InputStream spec, InputStream pdf)
+        throws IOException, DocumentException
+    {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
-        engine.Init(new ByteArrayInputStream(spec));
-        engine.execute(new ByteArrayInputStream(pdf), out);
+        if (!execute(command, spec, pdf, out))
+            return null;
         return out.toByteArray();
     }
 
+    /**
+     * Writes engine result straight to out, without buffering it.
+     * @return false if command is not known
+     */
+    public boolean execute(String command, InputStream spec, InputStream pdf, OutputStream out)
+        throws IOException, DocumentException
+    {
+        Engine engine = getEngine(command);
+        if (null == engine)
+            return false;
+        engine.execute(spec, pdf, out);
+        return true;
+    }
+
     public static void main(String[] args)
     {
         //do not show tray icon nor windows, popups, anything
         System.setProperty("java.awt.headless", "true");
 
-        com.itextpdf.text.pdf.PdfReader.unethicalreading = true;
-        if( args.length < 2) {
+        if ((args.length < 2) && !((args.length == 1) && args[0].equals("serve-stdio"))) {
             System.err.println("Usage:");
-            System.err.println("    java -jar scrivepdftools.jar httpserver -p [IP:]port");
+            System.err.println("    " + ServerOptions.USAGE);
+            System.err.println("    " + Supervisor.USAGE);
             System.err.println("");
             System.err.println("    java -jar scrivepdftools.jar add-verification-pages config.json [config2.json] [config3.json] ...");
             System.err.println("    java -jar scrivepdftools.jar find-texts config.json [config2.json] [config3.json] ...");
@@ -79,6 +133,12 @@ public class Main
             System.err.println("    java -jar scrivepdftools.jar select-and-clip config.json [config2.json] [config3.json] ...");
             System.err.println("    java -jar scrivepdftools.jar remove-scrive-elements config.json [config2.json] [config3.json] ...");
             System.err.println("    java -jar scrivepdftools.jar remove-javascript config.json [config2.json] [config3.json] ...");
+            System.err.println("    java -jar scrivepdftools.jar pipeline config.json [config2.json] [config3.json] ...");
+            System.err.println("    " + BatchRun.USAGE);
+            System.err.println("    " + Watcher.USAGE);
+            System.err.println("    " + FrameServer.USAGE);
+            System.err.println("    " + Warmup.USAGE);
+            System.err.println("    " + TextDumpFile.USAGE);
             System.err.println("");
             System.err.println("scrivepdftools uses the following products:");
             System.err.println("   iText by Bruno Lowagie, iText Group NV ");
@@ -86,32 +146,113 @@ public class Main
 
         }
         else if (args[0].equals("httpserver")) {
-            if (!args[1].equals("-p")) {
+            ServerOptions opts = null;
+            try {
+                opts = ServerOptions.parse(args, 1);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
                 System.err.println("Usage:");
-                System.err.println("    java -jar scrivepdftools.jar httpserver -p [IP:]port");
-            } else {
-                final int i = args[2].lastIndexOf(":", args[2].length());
-                final String ip = ( i < 0 ) ? null : args[2].substring(0, i);
-                final String port = args[2].substring(i + 1);
+                System.err.println("    " + ServerOptions.USAGE);
+            }
+            if (opts != null) {
                 try {
-                    WebServer.start(args[0], ip, Integer.valueOf(port));
-                } catch (NumberFormatException e) {
-                    System.err.println("Error: Invalid port number: " + port);
-                    System.err.println("Usage:");
-                    System.err.println("    java -jar scrivepdftools.jar httpserver -p [IP:]port");
+                    WebServer.start(args[0], opts);
                 } catch (SocketException e) {
-                    System.err.println("Error: Invalid IP address: " + ip);
+                    System.err.println("Error: Invalid IP address: " + opts.ip);
                     e.printStackTrace(System.err);                    
                 } catch (IOException e) {
                     e.printStackTrace(System.err);                    
                 }
             }
+        } else if (args[0].equals("batch")) {
+            BatchRun batch = null;
+            try {
+                batch = BatchRun.parse(args, 1);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.err.println("Usage:");
+                System.err.println("    " + BatchRun.USAGE);
+                System.exit(1);
+            }
+            try {
+                if (batch.run() > 0)
+                    System.exit(1);
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                System.exit(1);
+            }
+        } else if (args[0].equals("watch")) {
+            Watcher watcher = null;
+            try {
+                watcher = Watcher.parse(args, 1);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.err.println("Usage:");
+                System.err.println("    " + Watcher.USAGE);
+                System.exit(1);
+            }
+            try {
+                watcher.run();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                System.exit(1);
+            }
+        } else if (args[0].equals("serve-stdio") || args[0].equals("serve-unix")) {
+            try {
+                FrameServer.main(args);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.err.println("Usage:");
+                System.err.println("    " + FrameServer.USAGE);
+                System.exit(1);
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                System.exit(1);
+            }
+        } else if (args[0].equals("warmup")) {
+            try {
+                if (Warmup.train(args[1]) > 0)
+                    System.exit(1);
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                System.exit(1);
+            }
+        } else if (args[0].equals("convert-dump")) {
+            try {
+                TextDumpFile.convert(args, 1);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.err.println("Usage:");
+                System.err.println("    " + TextDumpFile.USAGE);
+                System.exit(1);
+            } catch (Exception e) {
+                e.printStackTrace(System.err);
+                System.exit(1);
+            }
+        } else if (args[0].equals("supervisor")) {
+            Supervisor supervisor = null;
+            try {
+                supervisor = Supervisor.parse(args, 1);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                System.err.println("Usage:");
+                System.err.println("    " + Supervisor.USAGE);
+            }
+            if (supervisor != null) {
+                try {
+                    supervisor.start();
+                } catch (IOException e) {
+                    e.printStackTrace(System.err);
+                }
+            }
         } else {
             try {
                 Engine engine = getEngine(args[0]);
                 if (null != engine) {
                     for (int i = 1; i < args.length; i++) {
                         engine.execute(args[i]);
+                        if ((i == 1) && (System.getProperty("scrivepdftools.timing") != null))
+                            System.err.println("Time to first result: " + Metrics.resultReady() + " ms");
                     }
                 }
             } catch (Exception e) {
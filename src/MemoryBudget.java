@@ -0,0 +1,158 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+/**
+ * Admission of requests by their estimated heap cost. A request starts
+ * only when its estimate fits in what is left of the budget, otherwise it
+ * waits in line. Requests estimated above the whole budget are refused.
+ */
+public class MemoryBudget
+{
+    /**
+     * Thrown for requests that could never fit in the budget
+     */
+    public static class TooLargeException extends IOException
+    {
+        private static final long serialVersionUID = 3518815683460731398L;
+
+        TooLargeException(long cost, long budget)
+        {
+            super("Request needs about " + (cost >> 10) + " MB, memory budget is " + (budget >> 10) + " MB");
+        }
+    }
+
+    /**
+     * Rough heap cost of a request, in kilobytes. The PDF is parsed and
+     * its result buffered. Configs carry attachments and images in base64,
+     * which are held as Java strings, decoded and then embedded.
+     */
+    static final long BASE_COST = 2048;
+    static final long PAGE_COST = 64;
+    static final int PDF_FACTOR = 3;
+    static final int CONFIG_FACTOR = 4;
+
+    /**
+     * Budget of the server, null when requests are not limited
+     */
+    static volatile MemoryBudget budget = null;
+
+    /**
+     * Kilobytes, so that budgets up to terabytes fit in int permits
+     */
+    final int total;
+    private final Semaphore permits;
+
+    /**
+     * @param bytes  heap available to requests
+     */
+    MemoryBudget(long bytes)
+    {
+        total = (int)Math.min(bytes >> 10, Integer.MAX_VALUE);
+        permits = new Semaphore(total, true);
+    }
+
+    /**
+     * @return estimated cost in kilobytes
+     */
+    static long estimate(long pdfSize, long configSize, int pages)
+    {
+        return BASE_COST + ((PDF_FACTOR * pdfSize + CONFIG_FACTOR * configSize) >> 10) + PAGE_COST * pages;
+    }
+
+    static long estimate(WebServer.Part config, WebServer.Part pdf)
+    {
+        return estimate(pdf.size, config.size, pageCount(pdf));
+    }
+
+    /**
+     * @return lowest possible cost of a request body of given size
+     */
+    static long minimum(long contentLength)
+    {
+        return BASE_COST + ((Math.min(PDF_FACTOR, CONFIG_FACTOR) * contentLength) >> 10);
+    }
+
+    /**
+     * Reads only the trailer and the page tree root of the PDF
+     * @return number of pages or 0 if not known
+     */
+    static int pageCount(WebServer.Part pdf)
+    {
+        try {
+            RandomAccessSourceFactory f = new RandomAccessSourceFactory();
+            RandomAccessFileOrArray raf = new RandomAccessFileOrArray((pdf.file != null) ? f.createBestSource(pdf.file.getPath()) : f.createSource(pdf.data));
+            PdfReader reader = new PdfReader(raf, null);
+            try {
+                return reader.getNumberOfPages();
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            // the engine reports broken documents
+            return 0;
+        }
+    }
+
+    /**
+     * Waits until cost fits in the budget, or the deadline of the thread
+     * @param cost  kilobytes
+     */
+    void acquire(long cost) throws IOException
+    {
+        if (cost > total)
+            throw new TooLargeException(cost, total);
+        if (Deadline.get() == null) {
+            permits.acquireUninterruptibly((int)cost);
+            return;
+        }
+        try {
+            if (!permits.tryAcquire((int)cost, Deadline.remaining(), TimeUnit.NANOSECONDS))
+                throw new Deadline.ExceededException();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    void release(long cost)
+    {
+        permits.release((int)cost);
+    }
+
+    /**
+     * @return kilobytes reserved by running requests
+     */
+    int reserved()
+    {
+        return total - permits.availablePermits();
+    }
+
+    int waiting()
+    {
+        return permits.getQueueLength();
+    }
+}
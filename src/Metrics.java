@@ -0,0 +1,351 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Server metrics exported in Prometheus text format. Recording only
+ * updates atomic counters, so it does not add contention to requests.
+ */
+public class Metrics
+{
+    /**
+     * Upper bounds of latency buckets, in seconds
+     */
+    static final double[] LATENCY_BUCKETS = {0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    /**
+     * Cumulative histogram, as expected by Prometheus
+     */
+    static class Histogram
+    {
+        final double[] bounds;
+        final AtomicLongArray buckets;
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong sumNanos = new AtomicLong();
+
+        Histogram(double[] bounds)
+        {
+            this.bounds = bounds;
+            buckets = new AtomicLongArray(bounds.length);
+        }
+
+        void observe(long nanos)
+        {
+            final double seconds = nanos / 1e9;
+            for (int i = 0; i < bounds.length; i++) {
+                if (seconds <= bounds[i]) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            sumNanos.addAndGet(nanos);
+            count.incrementAndGet();
+        }
+
+        void write(PrintWriter w, String name, String labels)
+        {
+            long n = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                n += buckets.get(i);
+                w.println(name + "_bucket{" + labels + ",le=\"" + bounds[i] + "\"} " + n);
+            }
+            w.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " + count.get());
+            w.println(name + "_sum{" + labels + "} " + (sumNanos.get() / 1e9));
+            w.println(name + "_count{" + labels + "} " + count.get());
+        }
+    }
+
+    /**
+     * Counters of a single command
+     */
+    static class Command
+    {
+        final Histogram latency = new Histogram(LATENCY_BUCKETS);
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final ConcurrentMap<String, AtomicLong> responses = new ConcurrentHashMap<String, AtomicLong>();
+    }
+
+    static final ConcurrentMap<String, Command> commands = new ConcurrentHashMap<String, Command>();
+    static final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+    static final AtomicLong inFlight = new AtomicLong();
+    static final AtomicLong pages = new AtomicLong();
+
+    /**
+     * Milliseconds from JVM start to the first successful result, -1
+     * until there is one
+     */
+    static final AtomicLong firstResult = new AtomicLong(-1);
+
+    /**
+     * Names the server records for its own requests, besides the commands
+     * of Main.ENGINES
+     */
+    static final String[] SERVER_COMMANDS = {"batch", "jobs", "test-client"};
+
+    /**
+     * Command names come from clients, those not known are all counted as
+     * "unknown", so that clients can not add series
+     */
+    static String commandLabel(String name)
+    {
+        for (String[] e : Main.ENGINES)
+            if (e[0].equals(name))
+                return name;
+        for (String known : SERVER_COMMANDS)
+            if (known.equals(name))
+                return name;
+        return "unknown";
+    }
+
+    /**
+     * Escapes a label value as the text exposition format wants it
+     */
+    static String label(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    static Command command(String name)
+    {
+        name = commandLabel(name);
+        Command c = commands.get(name);
+        if (c == null) {
+            Command c2 = commands.putIfAbsent(name, c = new Command());
+            if (c2 != null)
+                c = c2;
+        }
+        return c;
+    }
+
+    static void increment(ConcurrentMap<String, AtomicLong> counters, String key)
+    {
+        AtomicLong n = counters.get(key);
+        if (n == null) {
+            AtomicLong n2 = counters.putIfAbsent(key, n = new AtomicLong());
+            if (n2 != null)
+                n = n2;
+        }
+        n.incrementAndGet();
+    }
+
+    /**
+     * Measures a single request, from its creation until finish(). Finished
+     * requests are also the records of the access log.
+     */
+    static class Request
+    {
+        final String command;
+        final long start;
+        long bytesIn = 0;
+        long bytesOut = 0;
+
+        /**
+         * HTTP status or "aborted" when the response was cut
+         */
+        String status = "aborted";
+
+        String client = null;
+        String pdfName = null;
+        String error = null;
+
+        /**
+         * System.nanoTime() when the request was queued, when its body was
+         * parsed and when the engine finished, 0 for phases not reached
+         */
+        long queued;
+        long parsed = 0;
+        long executed = 0;
+        long end = 0;
+
+        /**
+         * Wall clock time of finish()
+         */
+        long time = 0;
+
+        Request(String command)
+        {
+            this(command, null, 0);
+        }
+
+        /**
+         * @param queued  when the request was queued, 0 if not known
+         */
+        Request(String command, String client, long queued)
+        {
+            this.command = command;
+            this.client = client;
+            inFlight.incrementAndGet();
+            start = System.nanoTime();
+            this.queued = (queued != 0) ? queued : start;
+        }
+
+        void parsed()
+        {
+            parsed = System.nanoTime();
+        }
+
+        void executed()
+        {
+            executed = System.nanoTime();
+        }
+
+        void finish()
+        {
+            end = System.nanoTime();
+            time = System.currentTimeMillis();
+            inFlight.decrementAndGet();
+            Command c = command(command);
+            c.latency.observe(end - start);
+            c.bytesIn.addAndGet(bytesIn);
+            c.bytesOut.addAndGet(bytesOut);
+            increment(c.responses, status);
+            if (!status.startsWith("2") && !status.startsWith("3"))
+                increment(errors, status);
+            else if (status.equals("200"))
+                resultReady();
+            AccessLog.record(this);
+        }
+    }
+
+    /**
+     * Called for every PDF opened by the engines
+     */
+    static void pagesProcessed(int n)
+    {
+        pages.addAndGet(n);
+    }
+
+    /**
+     * Called when a result is ready, records time to the first one
+     * @return milliseconds from JVM start to the first result
+     */
+    static long resultReady()
+    {
+        long ms = firstResult.get();
+        if (ms >= 0)
+            return ms;
+        final long now = System.currentTimeMillis();
+        // management classes are loaded only now, not to delay the result
+        ms = now - ManagementFactory.getRuntimeMXBean().getStartTime();
+        firstResult.compareAndSet(-1, ms);
+        return firstResult.get();
+    }
+
+    static void write(PrintWriter w)
+    {
+        // sort for stable output
+        Map<String, Command> cmds = new TreeMap<String, Command>(commands);
+
+        w.println("# HELP scrivepdftools_request_duration_seconds Time from accepting a request to sending the response.");
+        w.println("# TYPE scrivepdftools_request_duration_seconds histogram");
+        for (Map.Entry<String, Command> c : cmds.entrySet())
+            c.getValue().latency.write(w, "scrivepdftools_request_duration_seconds", "command=\"" + label(c.getKey()) + "\"");
+
+        w.println("# HELP scrivepdftools_requests_total Responses sent, by command and status.");
+        w.println("# TYPE scrivepdftools_requests_total counter");
+        for (Map.Entry<String, Command> c : cmds.entrySet())
+            for (Map.Entry<String, AtomicLong> s : new TreeMap<String, AtomicLong>(c.getValue().responses).entrySet())
+                w.println("scrivepdftools_requests_total{command=\"" + label(c.getKey()) + "\",status=\"" + label(s.getKey()) + "\"} " + s.getValue().get());
+
+        w.println("# HELP scrivepdftools_request_bytes_total Size of uploaded parts.");
+        w.println("# TYPE scrivepdftools_request_bytes_total counter");
+        for (Map.Entry<String, Command> c : cmds.entrySet())
+            w.println("scrivepdftools_request_bytes_total{command=\"" + label(c.getKey()) + "\"} " + c.getValue().bytesIn.get());
+
+        w.println("# HELP scrivepdftools_response_bytes_total Size of sent results.");
+        w.println("# TYPE scrivepdftools_response_bytes_total counter");
+        for (Map.Entry<String, Command> c : cmds.entrySet())
+            w.println("scrivepdftools_response_bytes_total{command=\"" + label(c.getKey()) + "\"} " + c.getValue().bytesOut.get());
+
+        w.println("# HELP scrivepdftools_errors_total Error responses, by status.");
+        w.println("# TYPE scrivepdftools_errors_total counter");
+        for (Map.Entry<String, AtomicLong> s : new TreeMap<String, AtomicLong>(errors).entrySet())
+            w.println("scrivepdftools_errors_total{status=\"" + label(s.getKey()) + "\"} " + s.getValue().get());
+
+        w.println("# HELP scrivepdftools_pages_total Pages of PDF documents opened by engines.");
+        w.println("# TYPE scrivepdftools_pages_total counter");
+        w.println("scrivepdftools_pages_total " + pages.get());
+
+        final long first = firstResult.get();
+        if (first >= 0) {
+            w.println("# HELP scrivepdftools_time_to_first_result_seconds Time from JVM start to the first successful result.");
+            w.println("# TYPE scrivepdftools_time_to_first_result_seconds gauge");
+            w.println("scrivepdftools_time_to_first_result_seconds " + (first / 1e3));
+        }
+
+        w.println("# HELP scrivepdftools_requests_in_flight Requests and batch items being processed.");
+        w.println("# TYPE scrivepdftools_requests_in_flight gauge");
+        w.println("scrivepdftools_requests_in_flight " + inFlight.get());
+
+        w.println("# HELP scrivepdftools_requests_queued Requests waiting for a worker, memory or cpu permit.");
+        w.println("# TYPE scrivepdftools_requests_queued gauge");
+        w.println("scrivepdftools_requests_queued " + WebServer.queued());
+
+        w.println("# HELP scrivepdftools_access_log_dropped_total Access log records dropped because the buffer was full.");
+        w.println("# TYPE scrivepdftools_access_log_dropped_total counter");
+        w.println("scrivepdftools_access_log_dropped_total " + AccessLog.droppedRecords());
+
+        MemoryBudget memory = MemoryBudget.budget;
+        if (memory != null) {
+            w.println("# HELP scrivepdftools_memory_budget_bytes Estimated heap reserved by running requests and the whole budget.");
+            w.println("# TYPE scrivepdftools_memory_budget_bytes gauge");
+            w.println("scrivepdftools_memory_budget_bytes{state=\"reserved\"} " + ((long)memory.reserved() << 10));
+            w.println("scrivepdftools_memory_budget_bytes{state=\"total\"} " + ((long)memory.total << 10));
+        }
+
+        ResultCache cache = ResultCache.cache;
+        if (cache != null) {
+            w.println("# HELP scrivepdftools_cache_requests_total Result cache lookups, by result.");
+            w.println("# TYPE scrivepdftools_cache_requests_total counter");
+            w.println("scrivepdftools_cache_requests_total{result=\"memory_hit\"} " + ResultCache.memoryHits.get());
+            w.println("scrivepdftools_cache_requests_total{result=\"disk_hit\"} " + ResultCache.diskHits.get());
+            w.println("scrivepdftools_cache_requests_total{result=\"miss\"} " + ResultCache.misses.get());
+            w.println("# HELP scrivepdftools_cache_bytes Size of cached results, by tier.");
+            w.println("# TYPE scrivepdftools_cache_bytes gauge");
+            w.println("scrivepdftools_cache_bytes{tier=\"memory\"} " + cache.memorySize());
+            w.println("scrivepdftools_cache_bytes{tier=\"disk\"} " + cache.diskSize());
+        }
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        w.println("# HELP jvm_memory_heap_bytes JVM heap usage.");
+        w.println("# TYPE jvm_memory_heap_bytes gauge");
+        w.println("jvm_memory_heap_bytes{area=\"used\"} " + heap.getUsed());
+        w.println("jvm_memory_heap_bytes{area=\"committed\"} " + heap.getCommitted());
+        w.println("jvm_memory_heap_bytes{area=\"max\"} " + heap.getMax());
+
+        w.println("# HELP jvm_gc_collections_total Garbage collections, by collector.");
+        w.println("# TYPE jvm_gc_collections_total counter");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            w.println("jvm_gc_collections_total{gc=\"" + label(gc.getName()) + "\"} " + gc.getCollectionCount());
+        w.println("# HELP jvm_gc_collection_seconds_total Time spent in garbage collection, by collector.");
+        w.println("# TYPE jvm_gc_collection_seconds_total counter");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            w.println("jvm_gc_collection_seconds_total{gc=\"" + label(gc.getName()) + "\"} " + (gc.getCollectionTime() / 1e3));
+    }
+}
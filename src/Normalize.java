@@ -16,11 +16,9 @@
  *
  */
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -37,6 +35,7 @@ import com.itextpdf.text.pdf.PdfObject;
 import com.itextpdf.text.pdf.PdfReader;
 import com.itextpdf.text.pdf.PdfStamper;
 import com.itextpdf.text.pdf.PdfStream;
+import com.itextpdf.text.pdf.PRStream;
 import com.itextpdf.text.pdf.parser.ContentByteUtils;
 import com.itextpdf.text.pdf.parser.ContentOperator;
 import com.itextpdf.text.pdf.parser.ImageRenderInfo;
@@ -89,10 +88,8 @@ public class Normalize extends Engine {
         }
       }
     
-    YamlSpec spec = null;
-
-    public void Init(InputStream specFile) throws IOException {
-        spec = YamlSpec.loadFromStream(specFile, YamlSpec.class);
+    public Object parse(InputStream specFile) throws IOException {
+        return YamlSpec.loadFromStream(specFile, YamlSpec.class);
     }
 
     /**
@@ -153,6 +150,7 @@ public class Normalize extends Engine {
         final int n = reader.getNumberOfPages();
         String keep = "";
         for (int i = 1; i <= n; i++) {
+            Deadline.check();
             if (!detect.isPageEmpty(reader, i))
                 keep = keep.isEmpty() ? String.valueOf(i) : keep + "," + i; // keep
                                                                             // non-empty
@@ -170,11 +168,12 @@ public class Normalize extends Engine {
      * @param reader
      *            - input PDF
      * @param stamper
-     *            - output writer
+     *            - output writer, null to add new objects to the reader
      */
     private static void unrotatePages(PdfReader reader, PdfStamper stamper) throws IOException {
         final int n = reader.getNumberOfPages();
         for (int i = 1; i <= n; i++) {
+            Deadline.check();
             PdfDictionary page = reader.getPageN(i);
             final int rot = -(new PageText(reader, i)).detectRotate();
             page.put(PdfName.ROTATE, null);
@@ -220,18 +219,31 @@ public class Normalize extends Engine {
                 page.put(PdfName.CROPBOX, null); // TODO: calculate CORRECT
                                                  // cropbox !
             }
+            if (stamper == null) {
+                ar.addFirst(reader.addPdfObject(new PRStream(reader, DocWriter.getISOBytes(ctm0), PdfStream.DEFAULT_COMPRESSION)));
+                continue;
+            }
             PdfStream stream2 = new PdfStream(DocWriter.getISOBytes(ctm0));
             ar.addFirst(stamper.getWriter().addToBody(stream2).getIndirectReference());
             stream2.flateCompress(PdfStream.DEFAULT_COMPRESSION);
         }
     }
 
-    public void execute(InputStream pdf, OutputStream os) throws IOException, DocumentException {
+    @Override
+    public void apply(Context ctx, Pipeline.Document doc, OutputStream out) throws IOException, DocumentException {
+        removeEveryEvenPageEmpty(doc.reader);
+        unrotatePages(doc.reader, null);
+        doc.flatten = true;
+        doc.changed();
+    }
+
+    public void execute(Context ctx, InputStream pdf, OutputStream os) throws IOException, DocumentException {
+        final YamlSpec spec = (YamlSpec)ctx.spec;
         if (pdf == null)
-            pdf = new FileInputStream(spec.input);
+            pdf = new FileStream(spec.input);
         if ((os == null) && (spec.output != null))
             os = new FileOutputStream(spec.output);
-        PdfReader reader = new PdfReader(pdf);
+        PdfReader reader = openReader(pdf);
         ByteArrayOutputStream buf = null;
         if (spec.dumpPath != null) {
             buf = new ByteArrayOutputStream();
@@ -253,10 +265,7 @@ public class Normalize extends Engine {
         
         // Create page text dumps
         if (buf != null) {
-            ObjectOutputStream dump = new ObjectOutputStream(new FileOutputStream(spec.dumpPath));
-            TextDump text = new TextDump(new PdfReader(buf.toByteArray()));
-            dump.writeObject(text);
-            dump.close();
+            TextDumpFile.write(new TextDump(buf.toByteArray()), spec.dumpPath, Boolean.TRUE.equals(spec.compressDump));
         }
     }
 }
@@ -0,0 +1,96 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * Directories a process keeps in a directory shared with other processes,
+ * named by host and pid and locked while the process runs. Directories
+ * whose lock is free were left by processes that ended.
+ *
+ * Locks are POSIX locks on Unix: closing any descriptor of a lock file
+ * unlocks it for the whole process, so a process must not lock its own
+ * directory twice.
+ */
+class OwnedDirectory
+{
+    static final String LOCK = ".lock";
+
+    /**
+     * @return host-pid of this process, usable in file names
+     */
+    static String ownerName()
+    {
+        return ManagementFactory.getRuntimeMXBean().getName().replaceAll("^([^@]*)@(.*)$", "$2-$1").replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Locks dir, held until released or the process ends
+     * @return null if another process or this one holds it
+     */
+    static FileLock lock(File dir) throws IOException
+    {
+        RandomAccessFile f = new RandomAccessFile(new File(dir, LOCK), "rw");
+        FileLock lock = null;
+        try {
+            lock = f.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by this process, not closed as that would unlock it
+            return null;
+        }
+        if (lock == null)
+            f.close();
+        return lock;
+    }
+
+    /**
+     * Releases a lock taken on the directory of another process and
+     * removes the lock file
+     */
+    static void unlock(File dir, FileLock lock) throws IOException
+    {
+        lock.release();
+        lock.channel().close();
+        new File(dir, LOCK).delete();
+    }
+
+    /**
+     * Removes a directory left by another process with what is in it
+     * @param lock  lock taken on dir
+     * @return number of files removed besides the lock
+     */
+    static int remove(File dir, FileLock lock) throws IOException
+    {
+        int removed = 0;
+        try {
+            File[] files = dir.listFiles();
+            for (File f : (files != null) ? files : new File[0])
+                if (!f.getName().equals(LOCK) && f.delete())
+                    removed++;
+        } finally {
+            unlock(dir, lock);
+        }
+        dir.delete();
+        return removed;
+    }
+}
@@ -17,11 +17,19 @@
  */
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.text.Bidi;
 import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 import com.itextpdf.awt.geom.Rectangle2D;
@@ -38,173 +46,6 @@ import com.itextpdf.text.pdf.parser.Vector;
  * Responsible for text processing and storage.
  *
  */
-class CharPos implements Serializable
-{
-    private static final long serialVersionUID = 6875877776978057339L;
-    
-    /*
-     * This is Unicode code point as used by java.String, so it
-     * may be a surrogate pair or some other crap. As soon as we
-     * enter markets that need this we need to move to full
-     * Unicode support. This requires involved changes everywhere
-     * so beware to test this properly once we are there.
-     */
-    String c;
-    /*
-     * Coordinates as returned by iText. We know that y is font
-     * baseline coordinate.
-     */
-    private float x0, y0, bx, by;
-    private Rectangle2D bbox = null, bbox2 = null;
-
-    public CharPos(String text, LineSegment base, Rectangle2D bbox)
-    {
-        c = text;
-        this.bbox = bbox;
-        // save base line
-        Vector origin = base.getStartPoint();
-        x0 = origin.get(Vector.I1);
-        y0 = origin.get(Vector.I2);
-        Vector b = base.getEndPoint().subtract(origin);
-        bx = b.get(Vector.I1);
-        by = b.get(Vector.I2);
-        final float xc = x0 + 0.5f * bx, yc = y0 + 0.5f * by; // base line center
-        bbox2 = new Rectangle2D.Float(xc, yc, 0.0f, 0.0f); 
-    }
-
-    public float getX() {
-        return x0;
-    }
-    public float getY() {
-        return y0;
-    }
-    public float getBaseX() {
-        return bx;
-    }
-    public float getBaseY() {
-        return by;
-    }
-    public Vector getBase()   {
-        return new Vector(bx, by, 0.0f);
-    }
-    public float getX2() {
-        return x0 + bx;
-    }
-    public float getY2() {
-        return y0 + by;
-    }
-
-    public Rectangle2D getBounds() {
-        return bbox;
-    }
-
-    public Rectangle2D getBaseLineBounds() {
-        return bbox2;
-    }
-
-    /*
-     * Returns glyph's width
-     */
-    public float getWidth() {
-        if (isHorizontal())
-            return Math.abs(bx);
-        else if (isVertical())
-            return Math.abs(by);
-        else
-            return getBase().length();
-    }
-
-    /*
-     * Checks for most popular case of regular, horizontal text
-     */
-    public boolean isHorizontal()
-    {
-        return Math.abs(by) < 0.0001;
-    }
-
-    public boolean isVertical()
-    {
-        return Math.abs(bx) < 0.0001;
-    }
-
-    // Comparison tool, gives 0 for zero, -1 for negatives and 1 for positives
-    public static int cmp(float v, float tol) {
-        if (Math.abs(v) < tol) // NOTE: adjust tolerance for 0
-            return 0;
-        return (v < 0.0) ? -1 : 1;
-    }
-    
-    /*
-     * Compares text direction of two glyphs (0=same direction)
-     */
-    public float cmpDir(CharPos c) {        
-        return bx * c.getBaseY() - by * c.getBaseX();
-    }
-
-    /*
-     * Compares vertical position of two glyphs (0=same line)
-     */
-    public float cmpLine(CharPos c) {
-        if (isHorizontal())
-            return (bx >= 0.0f) ? (y0 - c.getY()) : (c.getY() - y0); // simple Y2 - Y1 for horizontal text
-        else if (isVertical())
-            return (by > 0.0f) ? (c.getX() - x0) : (x0 - c.getX()); // simple X2 - X1 for vertical text
-
-        Vector p = new Vector(c.getX() - x0, c.getY() - y0, 0.0f);
-        final float l0 = getBase().length();
-        Vector pp = getBase().multiply(p.dot(getBase()) / (l0 * l0));
-        Vector d = p.subtract(pp);
-        return bx * d.get(Vector.I2) - by * d.get(Vector.I1); 
-    }
-
-    /*
-     * Compares horizontal position of two glyphs
-     */
-    public int cmpOrder(CharPos c2) {
-        final float cx = (float)c2.getBounds().getCenterX();
-        final float cy = (float)c2.getBounds().getCenterY();
-        if (isHorizontal()) {
-            final int z = (cx >= bbox.getMaxX()) ? 1 : ((cx <= bbox.getMinX()) ? -1 : 0);
-            return (bx >= 0.0f) ? z : -z;
-        } else if (isVertical()) {
-            final int z = (cy >= bbox.getMaxY()) ? 1 : ((cy <= bbox.getMinY()) ? -1 : 0);
-            return (by >= 0.0f) ? z : -z;
-        }
-        
-        return cmp(getBase().dot(new Vector(c2.getX() - x0, c2.getY() - y0, 0.0f)), 0.0f);
-    }
-
-    public boolean detectSpace(CharPos prev) {
-        final float space = 0.2f * getWidth();
-        if ((space == 0) && (bbox.getX() >= prev.getBounds().getMinX()) && (bbox.getX() <= prev.getBounds().getMaxX()) && (bbox.getY() >= prev.getBounds().getMinY()) && (bbox.getY() <= prev.getBounds().getMaxY())) 
-            return false; // 0-width problem (sadly we need own version of 'contains' for empty boxes...) 
-        if (isHorizontal()) {
-            return (bx >= 0.0f) ? (bbox.getMinX() >= prev.getBounds().getMaxX() + space) : (bbox.getMaxX() <= prev.getBounds().getMinX() - space);   
-        } else if (isVertical()) {
-            return (by >= 0.0f) ? (bbox.getMinY() >= prev.getBounds().getMaxY() + space) : (bbox.getMaxY() <= prev.getBounds().getMinY() - space);   
-        }
-
-        final Vector b = prev.getBase();
-        final Vector b2 = new Vector(getX() - prev.getX(), getY() - prev.getY(), 0.0f);
-        final float l = b.length(), l2 = b.dot(b2) / l;
-        return l2 >= l + space; 
-    }
-    
-    public void merge(CharPos other) {
-        c += other.c;
-        if (!isVertical())
-            bx = Math.max(bx, other.getX2() - x0);
-        if (!isHorizontal())
-            by = Math.max(by, other.getY2() - y0);
-        bbox.add(other.bbox);
-        bbox2.add(other.bbox2);
-    }
-    
-    public String toString() {
-        return "\"" + c + "\":(" + x0 + "," + y0 + "),<" + bx + ","+ by + ">";
-    }
-};
-
 public class PageText implements Serializable
 {
     private static final long serialVersionUID = -7658415439714179901L;
@@ -213,6 +54,7 @@ public class PageText implements Serializable
      * Regex for whitespace detection
      */
     public static final String WHITE_SPACE = "[ \t\n\u000B\f\r\u00A0\uFEFF\u200B]";
+    static final String WHITE_SPACE_CHARS = " \t\n\u000B\f\r\u00A0\uFEFF\u200B";
 
     /*
      *  Maximum vertical distance between two glyphs that can be assigned to the same line
@@ -247,7 +89,10 @@ public class PageText implements Serializable
         }
     }
 
-    private class PageTextRenderListener implements RenderListener
+    /**
+     * Passes glyphs of a page to addChar() of pageText
+     */
+    static class PageTextRenderListener implements RenderListener
     {
         PageText pageText;
 
@@ -316,34 +161,132 @@ public class PageText implements Serializable
     int pageRotation = 0;
     private boolean hasGlyphs = false;
     private boolean hasControlCodes = false;
+
+    /**
+     * Lines while glyphs are added, null once compact() moved them to the
+     * arrays below
+     */
     private TreeMap<Integer, ArrayList<ArrayList<CharPos>>> lines = new TreeMap<Integer, ArrayList<ArrayList<CharPos>>>();
 
+    /*
+     * Glyphs line by line, lines ordered as in lines. Text of glyph g is
+     * text[textEnd[g - 1]] to text[textEnd[g] - 1] and its geometry is
+     * GEOMETRY floats from geometry[g * GEOMETRY]. Line l ends before
+     * glyph lineEnd[l] and has direction lineDir[l].
+     */
+    private char[] text = null;
+    private int[] textEnd = null;
+    private float[] geometry = null;
+    private int[] lineEnd = null;
+    private int[] lineDir = null;
+
+    // x0, y0, bx, by, then x, y, width, height of bbox and of bbox2 of CharPos
+    private static final int GEOMETRY = 12;
+    private static final int BOUNDS = 4;
+    private static final int BASE_LINE_BOUNDS = 8;
+
+    /**
+     * Empty page, glyphs are added with addChar()
+     */
+    PageText() {
+    }
+
     public PageText(PdfReader reader, int iPage) throws IOException {
+        this(reader, iPage, null);
+    }
+
+    /**
+     * @param overlay  appearances drawn over the page when flattened, or null
+     */
+    public PageText(PdfReader reader, int iPage, FormOverlay overlay) throws IOException {
         PdfReaderContentParser parser = new PdfReaderContentParser(reader);
-        parser.processContent(iPage, new PageTextRenderListener(this));
+        PageTextRenderListener listener = new PageTextRenderListener(this);
+        parser.processContent(iPage, listener);
+        if (overlay != null)
+            overlay.processPage(iPage, listener);
+        compact();
 
         // geometry
         pageRotation = reader.getPageRotation(iPage);
         Rectangle r = reader.getCropBox(iPage);
         pageSize = new Rect(r.getLeft(), r.getBottom(), r.getWidth(), r.getHeight());
-        for ( int rot = pageRotation; rot > 0; rot -= 90)
-            r = r.rotate();
+        r = getCropBoxRotated(reader, iPage);
         pageSizeRotated = new Rect(r.getLeft(), r.getBottom(), r.getWidth(), r.getHeight());
     }
 
-    public static String line2str(ArrayList<CharPos> line) {
-        String str = "(" + line.get(0).getX() + ", " + line.get(0).getY() + "): ";
-        for (CharPos cp: line)
-            str += cp.c + " ";
+    /**
+     * Crop box as seen with page rotation applied, read from the page
+     * dictionary without parsing the content
+     */
+    public static Rectangle getCropBoxRotated(PdfReader reader, int iPage) {
+        Rectangle r = reader.getCropBox(iPage);
+        for ( int rot = reader.getPageRotation(iPage); rot > 0; rot -= 90)
+            r = r.rotate();
+        return r;
+    }
+
+    /**
+     * Finds containsGlyphs() and containsControlCodes() of a page
+     * without building its lines. Glyphs are checked as addChar() does,
+     * by the first code point that is not white space.
+     *
+     * @param overlay  appearances drawn over the page when flattened, or null
+     * @return {containsGlyphs, containsControlCodes}
+     */
+    public static boolean[] scanGlyphs(PdfReader reader, int iPage, FormOverlay overlay) throws IOException {
+        final boolean[] found = new boolean[2];
+        RenderListener listener = new RenderListener() {
+            public void beginTextBlock() {
+            }
+            public void endTextBlock() {
+            }
+            public void renderImage(ImageRenderInfo renderInfo) {
+            }
+            public void renderText(TextRenderInfo renderInfo) {
+                for (TextRenderInfo tri : renderInfo.getCharacterRenderInfos()) {
+                    final String text = tri.getText();
+                    for (int i = 0; i < text.length(); i = text.offsetByCodePoints(i, 1)) {
+                        final int codePoint = text.codePointAt(i);
+                        if (WHITE_SPACE_CHARS.indexOf(codePoint) < 0) {
+                            found[0] = true;
+                            found[1] = found[1] || codePoint<32 || codePoint>=0x20000;
+                            break;
+                        }
+                    }
+                }
+            }
+        };
+        new PdfReaderContentParser(reader).processContent(iPage, listener);
+        if (overlay != null)
+            overlay.processPage(iPage, listener);
+        return found;
+    }
+
+    // 0x20000 marks beginning of unassigned planes,
+    // 0xE0000 and 0xF0000 are special purpose planes, no
+    // useful glyphs in that range.
+    static boolean isControlCode(String c) {
+        int codePoint = c.codePointAt(0);
+        return codePoint<32 || codePoint>=0x20000;
+    }
+
+    public static String line2str(PageText page, Line line) {
+        String str = "(" + page.getX(line.first()) + ", " + page.getY(line.first()) + "): ";
+        for (int g = line.first(); g < line.end(); g++)
+            str += page.getText(g) + " ";
         return str;
     }
     
     public String toString() {
         String dump = "";
-        for (Map.Entry<Integer, ArrayList<ArrayList<CharPos>>> all: lines.entrySet()) {
-            dump += "Text (rot = " + (int)(all.getKey() * 180.0 / Math.PI / 1000.0) + "°):\n";
-            for (int i = 0; i < all.getValue().size(); ++i)
-                dump += "\t" + i + ": " + line2str(all.getValue().get(i)) + "\n";
+        int dir = 0, i = 0;
+        for (Line line: getLines()) {
+            if ((i == 0) || (line.getDirection() != dir)) {
+                dir = line.getDirection();
+                i = 0;
+                dump += "Text (rot = " + (int)(dir * 180.0 / Math.PI / 1000.0) + "°):\n";
+            }
+            dump += "\t" + (i++) + ": " + line2str(this, line) + "\n";
         }
         return dump;
     }
@@ -351,6 +294,167 @@ public class PageText implements Serializable
     public boolean containsGlyphs() { return hasGlyphs; }
     public boolean containsControlCodes() { return hasControlCodes; }
 
+    /*
+     * Lines and glyphs are found by binary search. The scans this
+     * replaces stop at the first line (glyph) that cp is not below
+     * (after), a binary search finds the same one as long as the lines
+     * of a direction (glyphs of a line) are in order for cmpLine()
+     * (cmpOrder()) with any glyph. That is checked whenever a first
+     * glyph of a line or a glyph changes, directions and lines that get
+     * out of order are scanned from then on, so the result is always
+     * the same as with scans.
+     */
+    private transient Set<Integer> unsortedDirs = null;
+    private transient Map<ArrayList<CharPos>, Boolean> unsortedLines = null;
+
+    private static int cmpLine(ArrayList<CharPos> line, CharPos cp) {
+        final CharPos c1 = line.get(0);
+        final float h = (float)(c1.isHorizontal() ? c1.getBounds().getHeight() : c1.getBounds().getWidth()); 
+        final float tol = 0.36f * h; // % H, experimental number (recommended 0.36+)
+        return CharPos.cmp(c1.cmpLine(cp), tol);
+    }
+
+    /**
+     * @return index of the first line cp is not below
+     */
+    private static int findLine(ArrayList<ArrayList<CharPos>> lines, CharPos cp, boolean sorted) {
+        if (!sorted) {
+            int i = 0;
+            while ((i < lines.size()) && (cmpLine(lines.get(i), cp) > 0))
+                ++i;
+            return i;
+        }
+        int lo = 0, hi = lines.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (cmpLine(lines.get(mid), cp) > 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return index of the first glyph of line cp does not come after
+     */
+    private static int findChar(ArrayList<CharPos> line, CharPos cp, boolean sorted) {
+        if (!sorted) {
+            int i = 0;
+            while ((i < line.size()) && (line.get(i).cmpOrder(cp) > 0))
+                ++i;
+            return i;
+        }
+        int lo = 0, hi = line.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (line.get(mid).cmpOrder(cp) > 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Side of a glyph cmpLine() measures, -1 for skewed glyphs
+     */
+    private static int lineSide(CharPos c) {
+        if (c.isHorizontal())
+            return (c.getBaseX() >= 0.0f) ? 0 : 1;
+        else if (c.isVertical())
+            return (c.getBaseY() > 0.0f) ? 2 : 3;
+        return -1;
+    }
+
+    /**
+     * cmpLine() of a line with first glyph c is positive for glyphs
+     * at or past this coordinate, in direction given by lineSide()
+     */
+    private static double lineKey(CharPos c) {
+        final float h = (float)(c.isHorizontal() ? c.getBounds().getHeight() : c.getBounds().getWidth());
+        final float tol = 0.36f * h;
+        final double pos;
+        switch (lineSide(c)) {
+        case 0:  pos = c.getY(); break;
+        case 1:  pos = -c.getY(); break;
+        case 2:  pos = -c.getX(); break;
+        default: pos = c.getX(); break;
+        }
+        return pos - tol;
+    }
+
+    /**
+     * True if every glyph below line b is below line a. The margin
+     * covers rounding of cmpLine().
+     */
+    private static boolean linesInOrder(ArrayList<CharPos> a, ArrayList<CharPos> b) {
+        final CharPos ca = a.get(0), cb = b.get(0);
+        if ((lineSide(ca) < 0) || (lineSide(ca) != lineSide(cb)))
+            return false;
+        final double ka = lineKey(ca), kb = lineKey(cb);
+        return ka - kb > 0.01 + 1e-5 * Math.max(Math.abs(ka), Math.abs(kb));
+    }
+
+    /**
+     * Side of a glyph cmpOrder() measures, -1 for skewed glyphs
+     */
+    private static int orderSide(CharPos c) {
+        if (c.isHorizontal())
+            return (c.getBaseX() >= 0.0f) ? 0 : 1;
+        else if (c.isVertical())
+            return (c.getBaseY() >= 0.0f) ? 2 : 3;
+        return -1;
+    }
+
+    /**
+     * cmpOrder() of c is positive for glyphs with center at or past this
+     * coordinate, in direction given by orderSide(), or only past it
+     * when orderStrict()
+     */
+    private static double orderKey(CharPos c) {
+        switch (orderSide(c)) {
+        case 0:  return c.getBounds().getMaxX();
+        case 1:  return -c.getBounds().getMinX();
+        case 2:  return c.getBounds().getMaxY();
+        default: return -c.getBounds().getMinY();
+        }
+    }
+
+    private static boolean orderStrict(CharPos c) {
+        switch (orderSide(c)) {
+        case 1:  return c.getBounds().getMinX() == c.getBounds().getMaxX();
+        case 3:  return c.getBounds().getMinY() == c.getBounds().getMaxY();
+        default: return false;
+        }
+    }
+
+    /**
+     * True if every glyph after b is after a
+     */
+    private static boolean charsInOrder(CharPos a, CharPos b) {
+        if ((orderSide(a) < 0) || (orderSide(a) != orderSide(b)))
+            return false;
+        final double ka = orderKey(a), kb = orderKey(b);
+        return (ka < kb) || ((ka == kb) && (orderStrict(b) || !orderStrict(a)));
+    }
+
+    private void checkLines(int dir, ArrayList<ArrayList<CharPos>> lines, int i) {
+        if (unsortedDirs.contains(dir))
+            return;
+        if (((i > 0) && !linesInOrder(lines.get(i - 1), lines.get(i))) ||
+            ((i + 1 < lines.size()) && !linesInOrder(lines.get(i), lines.get(i + 1))))
+            unsortedDirs.add(dir);
+    }
+
+    private void checkChars(ArrayList<CharPos> line, int i) {
+        if (unsortedLines.containsKey(line))
+            return;
+        if (((i > 0) && !charsInOrder(line.get(i - 1), line.get(i))) ||
+            ((i + 1 < line.size()) && !charsInOrder(line.get(i), line.get(i + 1))))
+            unsortedLines.put(line, Boolean.TRUE);
+    }
+
     private boolean addChar(CharPos cp) {
         // select direction
         final int dir = (int)(1000.0 * Math.atan2(cp.getBaseY(), cp.getBaseX()) + 0.5);
@@ -359,40 +463,36 @@ public class PageText implements Serializable
             lines = new ArrayList<ArrayList<CharPos>>();
             this.lines.put(dir, lines);
         }
+        if (unsortedDirs == null) {
+            unsortedDirs = new HashSet<Integer>();
+            unsortedLines = new IdentityHashMap<ArrayList<CharPos>, Boolean>();
+        }
 
         // select line
-        ArrayList<CharPos> best = null;
-        int i = 0, p = 1;
-        for (; (i < lines.size()) && (p > 0); ++i) {
-            final CharPos c1 = lines.get(i).get(0);
-            final float h = (float)(c1.isHorizontal() ? c1.getBounds().getHeight() : c1.getBounds().getWidth()); 
-            final float tol = 0.36f * h; // % H, experimental number (recommended 0.36+)
-            p = CharPos.cmp(c1.cmpLine(cp), tol);
-        }
-        if (p <= 0)
-            --i;
-        if (p == 0) {
-            best = lines.get(i);
-        } else {
-            best = new ArrayList<CharPos>();
-            lines.add(i, best);
+        final int iLine = findLine(lines, cp, !unsortedDirs.contains(dir));
+        if ((iLine == lines.size()) || (cmpLine(lines.get(iLine), cp) != 0)) {
+            ArrayList<CharPos> best = new ArrayList<CharPos>();
             best.add(cp);
+            lines.add(iLine, best);
+            checkLines(dir, lines, iLine);
             return true;
         }
+        final ArrayList<CharPos> best = lines.get(iLine);
 
         // select char
-        p = 1;
-        for (i = 0; (i < best.size()) && (p > 0); ++i)
-            p = best.get(i).cmpOrder(cp);
-        if (0 == p)
+        int i = findChar(best, cp, !unsortedLines.containsKey(best));
+        if ((i < best.size()) && (best.get(i).cmpOrder(cp) == 0))
             return false; // ignore overlapping glyphs (poor man's bold)
-        if (p < 0)
-            --i;
         final CharPos pred = (i > 0) ? best.get(i - 1) : null;
-        if ((pred == null) || cp.detectSpace(pred)) 
+        if ((pred == null) || cp.detectSpace(pred)) {
             best.add(i, cp);
-        else
+        } else {
             pred.merge(cp);
+            --i;
+        }
+        checkChars(best, i);
+        if (i == 0) // first glyph of the line changed
+            checkLines(dir, lines, iLine);
         return true;
     }
     /**
@@ -403,10 +503,7 @@ public class PageText implements Serializable
         String c = c1; //Normalizer.normalize(c1, Normalizer.Form.NFKC);
         hasGlyphs = true;
         int codePoint = c.codePointAt(0);
-        // 0x20000 marks beginning of unassigned planes,
-        // 0xE0000 and 0xF0000 are special purpose planes, no
-        // useful glyphs in that range.
-        hasControlCodes = hasControlCodes || codePoint<32 || codePoint>=0x20000;
+        hasControlCodes = hasControlCodes || isControlCode(c);
 
         if( codePoint>=32 ) {
             CharPos cp = new CharPos(c, base, bbox);
@@ -418,14 +515,17 @@ public class PageText implements Serializable
 
     public Vector getTextDir()
     {
+        compact();
         // select dominating direction
         int best = 0, c = 0, c2 = 0;
-        for (Map.Entry<Integer, ArrayList<ArrayList<CharPos>>> l: lines.entrySet()) {
-            int count = 0;
-            for (ArrayList<CharPos> line: l.getValue())
-                count += line.size();
+        for (int l = 0; l < lineDir.length; ) {
+            final int dir = lineDir[l];
+            final int start = (l == 0) ? 0 : lineEnd[l - 1];
+            while ((l < lineDir.length) && (lineDir[l] == dir))
+                ++l;
+            final int count = lineEnd[l - 1] - start;
             if (count > c) {
-                best = l.getKey();
+                best = dir;
                 c2 = c;
                 c = count;
             }
@@ -450,7 +550,267 @@ public class PageText implements Serializable
         return (int)Math.round(-Math.atan2(dir.get(Vector.I2), dir.get(Vector.I1)) * 180 / Math.PI);
     }
 
-    public TreeMap<Integer, ArrayList<ArrayList<CharPos>>> getChars() {
-        return lines;
+    /**
+     * Moves lines to the arrays, once all glyphs are added
+     */
+    void compact() {
+        if (lines == null)
+            return;
+        int nLines = 0, nGlyphs = 0, nChars = 0;
+        for (ArrayList<ArrayList<CharPos>> dir: lines.values()) {
+            nLines += dir.size();
+            for (ArrayList<CharPos> line: dir) {
+                nGlyphs += line.size();
+                for (CharPos c: line)
+                    nChars += c.c.length();
+            }
+        }
+        text = new char[nChars];
+        textEnd = new int[nGlyphs];
+        geometry = new float[nGlyphs * GEOMETRY];
+        lineEnd = new int[nLines];
+        lineDir = new int[nLines];
+        int l = 0, g = 0, t = 0;
+        for (Map.Entry<Integer, ArrayList<ArrayList<CharPos>>> dir: lines.entrySet()) {
+            for (ArrayList<CharPos> line: dir.getValue()) {
+                for (CharPos c: line) {
+                    c.c.getChars(0, c.c.length(), text, t);
+                    t += c.c.length();
+                    textEnd[g] = t;
+                    final int o = g * GEOMETRY;
+                    geometry[o] = c.getX();
+                    geometry[o + 1] = c.getY();
+                    geometry[o + 2] = c.getBaseX();
+                    geometry[o + 3] = c.getBaseY();
+                    setRect(o + BOUNDS, c.getBounds());
+                    setRect(o + BASE_LINE_BOUNDS, c.getBaseLineBounds());
+                    ++g;
+                }
+                lineEnd[l] = g;
+                lineDir[l] = dir.getKey();
+                ++l;
+            }
+        }
+        lines = null;
+        unsortedDirs = null;
+        unsortedLines = null;
+    }
+
+    // bounds of glyphs are Rectangle2D.Float, so this is exact
+    private void setRect(int o, Rectangle2D r) {
+        geometry[o] = (float)r.getX();
+        geometry[o + 1] = (float)r.getY();
+        geometry[o + 2] = (float)r.getWidth();
+        geometry[o + 3] = (float)r.getHeight();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        compact();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // dumps written before the arrays hold lines only
+        compact();
+    }
+
+    /**
+     * Page record of TextDumpFile, big endian: rotation, crop box and
+     * rotated crop box as x, y, width, height, glyph flags as bytes,
+     * numbers of lines, glyphs and chars, then the arrays in that order:
+     * line ends, line directions, text ends, geometry and text
+     */
+    byte[] toBytes() {
+        compact();
+        ByteBuffer b = ByteBuffer.allocate(4 + 8 * 4 + 2 + 3 * 4 + 4 * (2 * lineEnd.length + textEnd.length + geometry.length) + 2 * text.length);
+        b.putInt(pageRotation);
+        putRect(b, pageSize);
+        putRect(b, pageSizeRotated);
+        b.put((byte)(hasGlyphs ? 1 : 0));
+        b.put((byte)(hasControlCodes ? 1 : 0));
+        b.putInt(lineEnd.length);
+        b.putInt(textEnd.length);
+        b.putInt(text.length);
+        b.asIntBuffer().put(lineEnd);
+        b.position(b.position() + 4 * lineEnd.length);
+        b.asIntBuffer().put(lineDir);
+        b.position(b.position() + 4 * lineDir.length);
+        b.asIntBuffer().put(textEnd);
+        b.position(b.position() + 4 * textEnd.length);
+        b.asFloatBuffer().put(geometry);
+        b.position(b.position() + 4 * geometry.length);
+        b.asCharBuffer().put(text);
+        return b.array();
+    }
+
+    private static void putRect(ByteBuffer b, Rect r) {
+        b.putFloat(r.x);
+        b.putFloat(r.y);
+        b.putFloat(r.w);
+        b.putFloat(r.h);
+    }
+
+    private Rect getRect(ByteBuffer b) {
+        return new Rect(b.getFloat(), b.getFloat(), b.getFloat(), b.getFloat());
+    }
+
+    /**
+     * Decodes a page written by toBytes(), b is positioned at its start
+     */
+    /**
+     * Ends of lines and glyphs grow from the first and the last is the
+     * count of what they end, lines and glyphs are never empty
+     */
+    private static boolean increasing(int[] ends, int last) {
+        int previous = 0;
+        for (int end : ends) {
+            if (end <= previous)
+                return false;
+            previous = end;
+        }
+        return previous == last;
+    }
+
+    static PageText fromBytes(ByteBuffer b) throws IOException {
+        PageText page = new PageText();
+        page.lines = null;
+        try {
+            page.pageRotation = b.getInt();
+            page.pageSize = page.getRect(b);
+            page.pageSizeRotated = page.getRect(b);
+            page.hasGlyphs = b.get() != 0;
+            page.hasControlCodes = b.get() != 0;
+            final int nLines = b.getInt(), nGlyphs = b.getInt(), nChars = b.getInt();
+            if ((nLines < 0) || (nGlyphs < 0) || (nChars < 0) ||
+                (8L * nLines + 4L * (1 + GEOMETRY) * nGlyphs + 2L * nChars > b.remaining()))
+                throw new IOException("Corrupted page in text dump");
+            page.lineEnd = new int[nLines];
+            page.lineDir = new int[nLines];
+            page.textEnd = new int[nGlyphs];
+            page.geometry = new float[nGlyphs * GEOMETRY];
+            page.text = new char[nChars];
+            b.asIntBuffer().get(page.lineEnd);
+            b.position(b.position() + 4 * nLines);
+            b.asIntBuffer().get(page.lineDir);
+            b.position(b.position() + 4 * nLines);
+            b.asIntBuffer().get(page.textEnd);
+            b.position(b.position() + 4 * nGlyphs);
+            b.asFloatBuffer().get(page.geometry);
+            b.position(b.position() + 4 * page.geometry.length);
+            b.asCharBuffer().get(page.text);
+            b.position(b.position() + 2 * nChars);
+            if (!increasing(page.lineEnd, nGlyphs) || !increasing(page.textEnd, nChars))
+                throw new IOException("Corrupted page in text dump");
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated page in text dump");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Truncated page in text dump");
+        }
+        return page;
+    }
+
+    /**
+     * Read-only view of a line. Its glyphs are numbered from first() to
+     * end() - 1 and read with the glyph getters of the page.
+     */
+    public class Line {
+        private final int index;
+
+        Line(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Angle of the text in milliradians
+         */
+        public int getDirection() {
+            return lineDir[index];
+        }
+        public int first() {
+            return (index == 0) ? 0 : lineEnd[index - 1];
+        }
+        public int end() {
+            return lineEnd[index];
+        }
+        public int size() {
+            return end() - first();
+        }
+
+        /**
+         * Text of all glyphs of the line
+         */
+        public String getText() {
+            final int start = (first() == 0) ? 0 : textEnd[first() - 1];
+            return new String(text, start, textEnd[end() - 1] - start);
+        }
+    }
+
+    /**
+     * Lines by direction, in each direction from top to bottom
+     */
+    public List<Line> getLines() {
+        compact();
+        ArrayList<Line> result = new ArrayList<Line>(lineEnd.length);
+        for (int l = 0; l < lineEnd.length; l++)
+            result.add(new Line(l));
+        return result;
+    }
+
+    public int getNumberOfGlyphs() {
+        compact();
+        return textEnd.length;
+    }
+
+    private int textStart(int g) {
+        return (g == 0) ? 0 : textEnd[g - 1];
+    }
+
+    public String getText(int g) {
+        return new String(text, textStart(g), getTextLength(g));
+    }
+    public int getTextLength(int g) {
+        return textEnd[g] - textStart(g);
+    }
+    public void appendText(int g, StringBuilder sb) {
+        sb.append(text, textStart(g), getTextLength(g));
+    }
+
+    public float getX(int g) {
+        return geometry[g * GEOMETRY];
+    }
+    public float getY(int g) {
+        return geometry[g * GEOMETRY + 1];
+    }
+    public float getX2(int g) {
+        return geometry[g * GEOMETRY] + geometry[g * GEOMETRY + 2];
+    }
+    public float getY2(int g) {
+        return geometry[g * GEOMETRY + 1] + geometry[g * GEOMETRY + 3];
+    }
+    public float getBaseX(int g) {
+        return geometry[g * GEOMETRY + 2];
+    }
+    public float getBaseY(int g) {
+        return geometry[g * GEOMETRY + 3];
+    }
+    public boolean isHorizontal(int g) {
+        return Math.abs(getBaseY(g)) < 0.0001;
+    }
+
+    /**
+     * @return copy of the glyph bounds
+     */
+    public Rectangle2D getBounds(int g) {
+        final int o = g * GEOMETRY + BOUNDS;
+        return new Rectangle2D.Float(geometry[o], geometry[o + 1], geometry[o + 2], geometry[o + 3]);
+    }
+
+    /**
+     * @return copy of the base line bounds
+     */
+    public Rectangle2D getBaseLineBounds(int g) {
+        final int o = g * GEOMETRY + BASE_LINE_BOUNDS;
+        return new Rectangle2D.Float(geometry[o], geometry[o + 1], geometry[o + 2], geometry[o + 3]);
     }
 }
@@ -0,0 +1,197 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.yaml.snakeyaml.TypeDescription;
+import org.yaml.snakeyaml.Yaml;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfStamper;
+
+class PipelineStage
+{
+    public String command;
+    public Map<String, Object> spec;
+}
+
+class PipelineSpec extends YamlSpec
+{
+    public ArrayList<PipelineStage> stages;
+
+    static private ArrayList<TypeDescription> td = null;
+
+    static synchronized public ArrayList<TypeDescription> getTypeDescriptors() {
+        if (td == null) {
+            td = new ArrayList<TypeDescription>();
+            TypeDescription pipelineDesc = new TypeDescription(PipelineSpec.class);
+            pipelineDesc.putListPropertyType("stages", PipelineStage.class);
+            td.add(pipelineDesc);
+        }
+        return td;
+    }
+}
+
+/**
+ * Runs several engines over one document. The PDF is parsed once, passed
+ * between stages as PdfReader and written out only after the last stage.
+ * Result of the pipeline is the result of its last stage: the PDF or the
+ * text output of find-texts/extract-texts.
+ */
+public class Pipeline extends Engine {
+
+    /**
+     * Document passed between pipeline stages
+     */
+    public static class Document {
+        PdfReader reader;
+
+        /**
+         * Flatten forms and FreeText annotations when written out
+         */
+        boolean flatten = false;
+
+        /**
+         * Text of the document, shared by text stages until the document changes
+         */
+        private TextDump text = null;
+
+        Document(PdfReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Stages modifying the document have to call this
+         */
+        void changed() {
+            text = null;
+        }
+
+        TextDump getText() throws IOException, DocumentException {
+            if (text == null) {
+                if (flatten || TextDump.hasFormsOrFreeText(reader)) {
+                    // Flattening is done by PdfStamper, so this is the only
+                    // case when the document is serialized before the end,
+                    // then pages can be parsed in parallel
+                    byte[] flattened = TextDump.flatten(reader);
+                    reader.close();
+                    reader = new PdfReader(flattened);
+                    flatten = false;
+                    text = new TextDump(flattened);
+                } else {
+                    text = new TextDump(reader);
+                }
+            }
+            return text;
+        }
+
+        void write(OutputStream os) throws IOException, DocumentException {
+            PdfStamper stamper = new PdfStamper(reader, os);
+            stamper.setFormFlattening(flatten);
+            stamper.setFreeTextFlattening(flatten);
+            stamper.close();
+        }
+
+        void close() {
+            reader.close();
+        }
+    }
+
+    public Object parse(InputStream specFile) throws IOException {
+        YamlSpec.setTypeDescriptors(PipelineSpec.class, PipelineSpec.getTypeDescriptors());
+        return YamlSpec.loadFromStream(specFile, PipelineSpec.class);
+    }
+
+    /**
+     * @return engine of a stage
+     */
+    private static Engine getStageEngine(PipelineStage stage) {
+        if ((stage == null) || (stage.command == null))
+            throw new IllegalArgumentException("Missing command of a pipeline stage");
+        if (stage.command.equals("pipeline"))
+            throw new IllegalArgumentException("Pipelines can not be nested");
+        Engine engine = Main.getEngine(stage.command);
+        if (engine == null)
+            throw new IllegalArgumentException("Unknown command: " + stage.command);
+        return engine;
+    }
+
+    /**
+     * @return state of a stage run, with the stage spec
+     */
+    private static Engine.Context getStageContext(Engine engine, PipelineStage stage) throws IOException {
+        // engines load their specs from YAML, so stage specs are handed over as such
+        byte[] stageSpec = (stage.spec == null) ? "{}".getBytes("UTF-8") : new Yaml().dump(stage.spec).getBytes("UTF-8");
+        return engine.newContext(engine.parse(new ByteArrayInputStream(stageSpec)));
+    }
+
+    public void execute(Context ctx, InputStream pdf, OutputStream os) throws IOException, DocumentException {
+        final PipelineSpec spec = (PipelineSpec)ctx.spec;
+        if ((spec.stages == null) || spec.stages.isEmpty())
+            throw new IllegalArgumentException("Pipeline has no stages");
+        // parse all stage specs up front, so that spec errors are reported before any work
+        ArrayList<Engine> engines = new ArrayList<Engine>();
+        ArrayList<Engine.Context> contexts = new ArrayList<Engine.Context>();
+        for (PipelineStage stage : spec.stages) {
+            Engine engine = getStageEngine(stage);
+            engines.add(engine);
+            contexts.add(getStageContext(engine, stage));
+        }
+
+        if (pdf == null)
+            pdf = new FileStream(spec.input);
+        if ((os == null) && (spec.output != null))
+            os = new FileOutputStream(spec.output);
+        Document doc = new Document(openReader(pdf));
+        try {
+            final int last = engines.size() - 1;
+            for (int i = 0; i <= last; i++) {
+                Engine engine = engines.get(i);
+                Engine.Context stage = contexts.get(i);
+                Deadline.check();
+                if (i < last) {
+                    // text results of intermediate stages go to their own output, if any
+                    String output = engine instanceof TextEngine ? ((TextEngine.Context)stage).getSpec().output : null;
+                    OutputStream out = (output != null) ? new FileOutputStream(output) : new NullOutputStream();
+                    try {
+                        engine.apply(stage, doc, out);
+                    } finally {
+                        out.close();
+                    }
+                } else if (engine instanceof TextEngine) {
+                    engine.apply(stage, doc, os);
+                } else {
+                    engine.apply(stage, doc, null);
+                    if (os != null)
+                        doc.write(os);
+                }
+            }
+        } finally {
+            doc.close();
+            pdf.close();
+        }
+    }
+}
@@ -16,7 +16,6 @@
  *
  */
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -48,10 +47,8 @@ import com.itextpdf.text.pdf.parser.TextRenderInfo;
 
 public class RemoveJavaScript extends Engine
 {
-    YamlSpec spec = null;
-
-    public void Init(InputStream specFile) throws IOException {
-        spec = YamlSpec.loadFromStream(specFile, YamlSpec.class);
+    public Object parse(InputStream specFile) throws IOException {
+        return YamlSpec.loadFromStream(specFile, YamlSpec.class);
     }
 
     public static void traversePdfDictionary(final PdfDictionary dict)
@@ -86,17 +83,35 @@ public class RemoveJavaScript extends Engine
         }
     }
 
-    public void execute(InputStream pdf, OutputStream os) throws IOException, DocumentException {
+    public void execute(Context ctx, InputStream pdf, OutputStream os) throws IOException, DocumentException {
+        final YamlSpec spec = (YamlSpec)ctx.spec;
         if (pdf == null)
-            pdf = new FileInputStream(spec.input);
+            pdf = new FileStream(spec.input);
         if ((os == null) && (spec.output != null))
             os = new FileOutputStream(spec.output);
-        PdfReader reader = new PdfReader(pdf);
+        PdfReader reader = openReader(pdf);
         ByteArrayOutputStream buf = null;
         if (os == null) {
             return; // no result expected, cancel
         }
 
+        removeJavaScript(reader);
+
+        PdfStamper stamper = new PdfStamper(reader, os);
+
+        stamper.close();
+        reader.close();
+        pdf.close();
+    }
+
+    @Override
+    public void apply(Context ctx, Pipeline.Document doc, OutputStream out) {
+        removeJavaScript(doc.reader);
+        doc.changed();
+    }
+
+    static void removeJavaScript(PdfReader reader)
+    {
         // Remove document level JavaScript.
         //
         // To support the use of parameterized function calls in
@@ -125,11 +140,5 @@ public class RemoveJavaScript extends Engine
             }
 
         }
-
-        PdfStamper stamper = new PdfStamper(reader, os);
-
-        stamper.close();
-        reader.close();
-        pdf.close();
     }
 }
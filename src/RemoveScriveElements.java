@@ -15,7 +15,6 @@
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
  *
  */
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -45,7 +44,7 @@ class RemoveScriveElementsSpec extends YamlSpec
 
     static private ArrayList<TypeDescription> td = null;
 
-    static public ArrayList<TypeDescription> getTypeDescriptors() {
+    static synchronized public ArrayList<TypeDescription> getTypeDescriptors() {
         if (td == null) {
             td = new ArrayList<TypeDescription>();
             td.add(new TypeDescription(RemoveScriveElementsSpec.class));
@@ -56,27 +55,41 @@ class RemoveScriveElementsSpec extends YamlSpec
 
 public class RemoveScriveElements extends Engine {
 
-    RemoveScriveElementsSpec spec = null;
-
-    public void Init(InputStream specFile) throws IOException {
+    public Object parse(InputStream specFile) throws IOException {
         YamlSpec.setTypeDescriptors(RemoveScriveElementsSpec.class, RemoveScriveElementsSpec.getTypeDescriptors());
-        spec = YamlSpec.loadFromStream(specFile, RemoveScriveElementsSpec.class);
+        return YamlSpec.loadFromStream(specFile, RemoveScriveElementsSpec.class);
     }
 
-    public void execute(InputStream pdf, OutputStream os) throws IOException, DocumentException {
+    public void execute(Context ctx, InputStream pdf, OutputStream os) throws IOException, DocumentException {
+        final RemoveScriveElementsSpec spec = (RemoveScriveElementsSpec)ctx.spec;
         if (pdf == null)
-            pdf = new FileInputStream(spec.input);
+            pdf = new FileStream(spec.input);
         if ((os == null) && (spec.output != null))
             os = new FileOutputStream(spec.output);
         if (os == null)
             return; // no result expected, cancel
-        PdfReader reader = new PdfReader(pdf);
+        PdfReader reader = openReader(pdf);
         PdfStamper stamper = new PdfStamper(reader, os);
 
+        remove(spec, reader);
+
+        stamper.close();
+        reader.close();
+        pdf.close();
+    }
+
+    @Override
+    public void apply(Context ctx, Pipeline.Document doc, OutputStream out) throws IOException {
+        remove((RemoveScriveElementsSpec)ctx.spec, doc.reader);
+        doc.changed();
+    }
+
+    private void remove(RemoveScriveElementsSpec spec, PdfReader reader) throws IOException {
         // remove verification pages
         final int n = reader.getNumberOfPages();
         String keep = "";
         for (int i = 1; i <= n; i++) {
+            Deadline.check();
             PdfDictionary page = reader.getPageN(i);
             if (spec.removeVerificationPages && AddVerificationPages.scriveTagVerPage.equals(page.get(AddVerificationPages.scriveTag)))
                 continue; // remove the whole page
@@ -98,10 +111,6 @@ public class RemoveScriveElements extends Engine {
                 reader.getCatalog().remove(PdfName.NAMES);
         }
         reader.removeUnusedObjects();
-
-        stamper.close();
-        reader.close();
-        pdf.close();
     }
 
     private interface IByteSearchListener {
@@ -0,0 +1,356 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+/**
+ * Results of deterministic commands, addressed by SHA-256 of the command,
+ * the canonical config and the PDF. Recently used results are kept in
+ * memory, optionally also on disk. Both tiers are bounded in bytes and
+ * evict least recently used results first.
+ */
+public class ResultCache
+{
+    /**
+     * Commands whose result depends only on their config and PDF
+     */
+    static final List<String> COMMANDS = Arrays.asList("find-texts", "extract-texts", "normalize", "remove-javascript", "select-and-clip");
+
+    /**
+     * Config keys that read or write files, commands using them are not cached
+     */
+    static final String[] SIDE_EFFECTS = {"stampedOutput", "dumpPath"};
+
+    /**
+     * Cache of the server, null when results are not cached
+     */
+    static volatile ResultCache cache = null;
+
+    static final AtomicLong memoryHits = new AtomicLong();
+    static final AtomicLong diskHits = new AtomicLong();
+    static final AtomicLong misses = new AtomicLong();
+
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long memorySize = 0;
+    final long memoryLimit;
+
+    /**
+     * Results larger than this are not cached
+     */
+    final long entryLimit;
+
+    private final File dir;
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long diskSize = 0;
+    final long diskLimit;
+
+    /**
+     * @param memoryLimit  bytes kept in memory
+     * @param dir          directory of the disk tier or null
+     * @param diskLimit    bytes kept on disk
+     */
+    ResultCache(long memoryLimit, File dir, long diskLimit) throws IOException
+    {
+        this.memoryLimit = memoryLimit;
+        this.dir = dir;
+        this.diskLimit = diskLimit;
+        entryLimit = Math.max(memoryLimit / 8, (dir != null) ? diskLimit / 8 : 0);
+        if (dir != null) {
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Can not create cache directory: " + dir);
+            // results of previous runs are still valid, oldest first
+            File[] files = dir.listFiles();
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return (a.lastModified() < b.lastModified()) ? -1 : ((a.lastModified() == b.lastModified()) ? 0 : 1);
+                }
+            });
+            for (File f : files) {
+                if (f.getName().endsWith(".tmp")) {
+                    f.delete();
+                } else if (f.getName().length() == 64) {
+                    disk.put(f.getName(), Long.valueOf(f.length()));
+                    diskSize += f.length();
+                }
+            }
+            evictDisk();
+        }
+    }
+
+    /**
+     * @return cache key or null when the result of the command can not be cached
+     */
+    static String key(String command, InputStream config, InputStream pdf) throws IOException
+    {
+        if (!COMMANDS.contains(command))
+            return null;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        md.update(command.getBytes("UTF-8"));
+        md.update((byte)0);
+        byte[] spec = IOUtils.toByteArray(config);
+        Object canonical = null;
+        try {
+            // configs come from clients, tagged objects are not built
+            canonical = canonical(new Yaml(new SafeConstructor()).load(new String(spec, "UTF-8")));
+        } catch (RuntimeException e) {
+            // the engine reports the error, hash the config as is
+        }
+        if (canonical instanceof Map) {
+            for (String k : SIDE_EFFECTS)
+                if (((Map<?, ?>)canonical).get(k) != null)
+                    return null;
+            md.update(new Yaml().dump(canonical).getBytes("UTF-8"));
+        } else {
+            md.update(spec);
+        }
+        md.update((byte)0);
+        byte[] buf = new byte[65536];
+        int n;
+        while ((n = pdf.read(buf)) > 0)
+            md.update(buf, 0, n);
+        StringBuilder s = new StringBuilder(64);
+        for (byte b : md.digest())
+            s.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        return s.toString();
+    }
+
+    /**
+     * @return the same YAML tree with maps sorted by key, so that
+     *         formatting and key order of configs do not matter
+     */
+    private static Object canonical(Object o)
+    {
+        if (o instanceof Map) {
+            TreeMap<String, Object> m = new TreeMap<String, Object>();
+            for (Map.Entry<?, ?> e : ((Map<?, ?>)o).entrySet())
+                m.put(String.valueOf(e.getKey()), canonical(e.getValue()));
+            return m;
+        }
+        if (o instanceof List) {
+            ArrayList<Object> l = new ArrayList<Object>();
+            for (Object i : (List<?>)o)
+                l.add(canonical(i));
+            return l;
+        }
+        return o;
+    }
+
+    /**
+     * @return cached result or null
+     */
+    byte[] get(String key)
+    {
+        byte[] result;
+        synchronized (memory) {
+            result = memory.get(key);
+        }
+        if (result != null) {
+            memoryHits.incrementAndGet();
+            return result;
+        }
+        if (dir != null) {
+            synchronized (disk) {
+                if (disk.get(key) == null) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+            }
+            File f = new File(dir, key);
+            try {
+                InputStream in = new FileInputStream(f);
+                try {
+                    result = IOUtils.toByteArray(in);
+                } finally {
+                    in.close();
+                }
+                f.setLastModified(System.currentTimeMillis());
+                diskHits.incrementAndGet();
+                putMemory(key, result);
+                return result;
+            } catch (IOException e) {
+                // evicted meanwhile
+                synchronized (disk) {
+                    Long size = disk.remove(key);
+                    if (size != null)
+                        diskSize -= size.longValue();
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    void put(String key, byte[] result)
+    {
+        if (result.length > entryLimit)
+            return;
+        putMemory(key, result);
+        if (dir == null)
+            return;
+        synchronized (disk) {
+            if (disk.containsKey(key))
+                return;
+        }
+        // written under a temporary name, so that readers never see a partial file
+        File tmp = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(result);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(new File(dir, key))) {
+                tmp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            tmp.delete();
+            return;
+        }
+        synchronized (disk) {
+            if (disk.put(key, Long.valueOf(result.length)) == null)
+                diskSize += result.length;
+            evictDisk();
+        }
+    }
+
+    private void putMemory(String key, byte[] result)
+    {
+        if (result.length > memoryLimit / 8)
+            return;
+        synchronized (memory) {
+            byte[] old = memory.put(key, result);
+            memorySize += result.length - ((old != null) ? old.length : 0);
+            Iterator<byte[]> i = memory.values().iterator();
+            while ((memorySize > memoryLimit) && i.hasNext()) {
+                memorySize -= i.next().length;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Caller has to hold the disk lock
+     */
+    private void evictDisk()
+    {
+        Iterator<Map.Entry<String, Long>> i = disk.entrySet().iterator();
+        while ((diskSize > diskLimit) && i.hasNext()) {
+            Map.Entry<String, Long> e = i.next();
+            new File(dir, e.getKey()).delete();
+            diskSize -= e.getValue().longValue();
+            i.remove();
+        }
+    }
+
+    long memorySize()
+    {
+        synchronized (memory) {
+            return memorySize;
+        }
+    }
+
+    long diskSize()
+    {
+        synchronized (disk) {
+            return diskSize;
+        }
+    }
+
+    /**
+     * Passes output through while keeping a copy of it, up to a limit
+     */
+    static class CaptureOutputStream extends OutputStream
+    {
+        final OutputStream out;
+        final long limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CaptureOutputStream(OutputStream out, long limit)
+        {
+            this.out = out;
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            if (copy != null) {
+                if (copy.size() + len > limit)
+                    copy = null;
+                else
+                    copy.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+
+        /**
+         * @return everything written or null when over the limit
+         */
+        byte[] captured()
+        {
+            return (copy != null) ? copy.toByteArray() : null;
+        }
+    }
+}
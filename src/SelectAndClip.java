@@ -16,7 +16,6 @@
  *
  */
 
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,20 +39,19 @@ class SelectAndClipSpec extends YamlSpec
 
 public class SelectAndClip extends Engine {
 
-    SelectAndClipSpec spec = null;
-    
-    public void Init(InputStream specFile) throws IOException {
-        spec = SelectAndClipSpec.loadFromStream(specFile, SelectAndClipSpec.class);
+    public Object parse(InputStream specFile) throws IOException {
+        return SelectAndClipSpec.loadFromStream(specFile, SelectAndClipSpec.class);
     }
 
-    public void execute(InputStream is, OutputStream os)
+    public void execute(Context ctx, InputStream is, OutputStream os)
         throws IOException, DocumentException
     {
+        final SelectAndClipSpec spec = (SelectAndClipSpec)ctx.spec;
         if (is == null)
-            is = new FileInputStream(spec.input);
+            is = new FileStream(spec.input);
         if (os == null)
             os = new FileOutputStream(spec.output);
-        PdfReader reader = new PdfReader(is);
+        PdfReader reader = openReader(is);
         Document document = new Document();
         PdfWriter writer = PdfWriter.getInstance(document, os);
         document.open();
@@ -0,0 +1,205 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+/**
+ * Command line options of the embedded HTTP server.
+ */
+public class ServerOptions
+{
+    public static final String USAGE = "java -jar scrivepdftools.jar httpserver -p [IP:]port [-t threads] [-q queue-size] [--virtual-threads] [--cpu-permits n] [--spill-threshold bytes] [--chunked] [--timeout seconds] [--warmup rounds] [--jobs-dir path] [--job-ttl seconds] [--job-store-size megabytes] [--access-log path|-] [--access-log-buffer records] [--cache-size megabytes] [--cache-dir path] [--cache-disk-size megabytes] [--memory-budget megabytes]";
+
+    public String ip = null;
+    public int port = -1;
+
+    /**
+     * Number of worker threads running PDF commands.
+     */
+    public int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of requests allowed to wait for a free worker. Requests
+     * above that are answered with 503 right away.
+     */
+    public int queue = 64;
+
+    /**
+     * Run each exchange on its own virtual thread (Java 21+) instead
+     * of the worker pool. Engine work is then limited by cpuPermits.
+     */
+    public boolean virtualThreads = false;
+
+    /**
+     * Number of engines allowed to run at once in virtual threads mode.
+     */
+    public int cpuPermits = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Uploaded parts larger than this are kept in temporary files
+     * instead of memory.
+     */
+    public int spillThreshold = 1024 * 1024;
+
+    /**
+     * Stream results with chunked transfer encoding as the engine
+     * produces them instead of buffering the whole result.
+     */
+    public boolean chunked = false;
+
+    /**
+     * Default time allowed for a request, counted from when it was
+     * queued. Clients may set their own with the X-Timeout header.
+     * 0 means no deadline.
+     */
+    public int timeout = 0;
+
+    /**
+     * Number of times each engine is run over bundled samples at
+     * startup. /ready answers 503 until that is done.
+     */
+    public int warmup = 0;
+
+    /**
+     * Where results of asynchronous jobs are kept, temporary directory
+     * if not set
+     */
+    public String jobsDir = null;
+
+    /**
+     * Seconds a finished job and its result are kept
+     */
+    public int jobTtl = 3600;
+
+    /**
+     * Megabytes of job results kept at most, oldest are removed first
+     */
+    public int jobStoreSize = 1024;
+
+    /**
+     * File the access log is appended to, "-" for standard output
+     */
+    public String accessLog = "-";
+
+    /**
+     * Access log records buffered at most, more are dropped
+     */
+    public int accessLogBuffer = 8192;
+
+    /**
+     * Megabytes of results of deterministic commands cached in memory, 0 disables the cache
+     */
+    public int cacheSize = 64;
+
+    /**
+     * Directory of the on-disk result cache, none if not set
+     */
+    public String cacheDir = null;
+
+    /**
+     * Megabytes of results cached on disk
+     */
+    public int cacheDiskSize = 1024;
+
+    /**
+     * Megabytes of heap requests may take by their estimate, three
+     * quarters of the maximum heap if not set
+     */
+    public int memoryBudget = 0;
+
+    /**
+     * Parses options following the 'httpserver' command.
+     *
+     * @param args  command line
+     * @param from  index of the first option
+     * @throws IllegalArgumentException with a message suitable for the user
+     */
+    public static ServerOptions parse(String[] args, int from)
+    {
+        ServerOptions opts = new ServerOptions();
+        for (int i = from; i < args.length; i++) {
+            final String opt = args[i];
+            if (opt.equals("-p")) {
+                final String addr = value(args, ++i, opt);
+                final int j = addr.lastIndexOf(":");
+                opts.ip = ( j < 0 ) ? null : addr.substring(0, j);
+                opts.port = number(addr.substring(j + 1), "port number");
+            } else if (opt.equals("-t")) {
+                opts.threads = number(value(args, ++i, opt), "number of threads");
+            } else if (opt.equals("-q")) {
+                opts.queue = number(value(args, ++i, opt), "queue size");
+            } else if (opt.equals("--virtual-threads")) {
+                opts.virtualThreads = true;
+            } else if (opt.equals("--cpu-permits")) {
+                opts.cpuPermits = number(value(args, ++i, opt), "number of cpu permits");
+            } else if (opt.equals("--spill-threshold")) {
+                opts.spillThreshold = number(value(args, ++i, opt), "spill threshold");
+            } else if (opt.equals("--chunked")) {
+                opts.chunked = true;
+            } else if (opt.equals("--timeout")) {
+                opts.timeout = number(value(args, ++i, opt), "timeout");
+            } else if (opt.equals("--warmup")) {
+                opts.warmup = number(value(args, ++i, opt), "number of warmup rounds");
+            } else if (opt.equals("--jobs-dir")) {
+                opts.jobsDir = value(args, ++i, opt);
+            } else if (opt.equals("--job-ttl")) {
+                opts.jobTtl = number(value(args, ++i, opt), "job time to live");
+            } else if (opt.equals("--job-store-size")) {
+                opts.jobStoreSize = number(value(args, ++i, opt), "job store size");
+            } else if (opt.equals("--access-log")) {
+                opts.accessLog = value(args, ++i, opt);
+            } else if (opt.equals("--access-log-buffer")) {
+                opts.accessLogBuffer = number(value(args, ++i, opt), "access log buffer size");
+            } else if (opt.equals("--cache-size")) {
+                opts.cacheSize = number(value(args, ++i, opt), "cache size");
+            } else if (opt.equals("--cache-dir")) {
+                opts.cacheDir = value(args, ++i, opt);
+            } else if (opt.equals("--cache-disk-size")) {
+                opts.cacheDiskSize = number(value(args, ++i, opt), "cache disk size");
+            } else if (opt.equals("--memory-budget")) {
+                opts.memoryBudget = number(value(args, ++i, opt), "memory budget");
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + opt);
+            }
+        }
+        if (opts.port < 0)
+            throw new IllegalArgumentException("Missing port number");
+        if (opts.threads < 1)
+            throw new IllegalArgumentException("Invalid number of threads: " + opts.threads);
+        if (opts.cpuPermits < 1)
+            throw new IllegalArgumentException("Invalid number of cpu permits: " + opts.cpuPermits);
+        return opts;
+    }
+
+    static String value(String[] args, int i, String opt)
+    {
+        if (i >= args.length)
+            throw new IllegalArgumentException("Missing value for option: " + opt);
+        return args[i];
+    }
+
+    static int number(String value, String what)
+    {
+        try {
+            final int n = Integer.parseInt(value);
+            if (n < 0)
+                throw new NumberFormatException();
+            return n;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + what + ": " + value);
+        }
+    }
+}
@@ -0,0 +1,835 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs several worker JVMs, each an httpserver on a loopback port, and
+ * passes every request to an idle one. A worker that dies, runs out of
+ * memory or does not answer in time is killed and started again, so a
+ * bad document only takes down the request that brought it. Workers are
+ * also recycled after a number of requests, those holding asynchronous
+ * jobs are drained first: they take no more requests and are replaced
+ * once their jobs were fetched, deleted or expired.
+ */
+public class Supervisor
+{
+    /**
+     * Milliseconds a request waits for an idle worker, as long as a worker
+     * may take to start
+     */
+    static final long WORKER_WAIT = 120 * 1000;
+
+    public static final String USAGE = "java -jar scrivepdftools.jar supervisor -p [IP:]port [-w workers] [-q queue-size] [--max-requests n] [--worker-heap megabytes] [--worker-timeout seconds] [-- httpserver options]";
+
+    public String ip = null;
+    public int port = -1;
+
+    /**
+     * Number of worker JVMs
+     */
+    public int workers = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of requests allowed to wait for an idle worker
+     */
+    public int queue = 64;
+
+    /**
+     * Requests served by a worker before it is replaced, 0 for no limit
+     */
+    public int maxRequests = 1000;
+
+    /**
+     * Maximum heap of a worker, JVM default if not set
+     */
+    public int workerHeap = 0;
+
+    /**
+     * Seconds a worker may take for a request before it is killed, 0 for no limit
+     */
+    public int workerTimeout = 0;
+
+    /**
+     * Options passed to the httpserver of each worker
+     */
+    public List<String> serverArgs = new ArrayList<String>();
+
+    /**
+     * Parses options following the 'supervisor' command.
+     *
+     * @throws IllegalArgumentException with a message suitable for the user
+     */
+    public static Supervisor parse(String[] args, int from)
+    {
+        Supervisor s = new Supervisor();
+        for (int i = from; i < args.length; i++) {
+            final String opt = args[i];
+            if (opt.equals("-p")) {
+                final String addr = ServerOptions.value(args, ++i, opt);
+                final int j = addr.lastIndexOf(":");
+                s.ip = ( j < 0 ) ? null : addr.substring(0, j);
+                s.port = ServerOptions.number(addr.substring(j + 1), "port number");
+            } else if (opt.equals("-w")) {
+                s.workers = ServerOptions.number(ServerOptions.value(args, ++i, opt), "number of workers");
+            } else if (opt.equals("-q")) {
+                s.queue = ServerOptions.number(ServerOptions.value(args, ++i, opt), "queue size");
+            } else if (opt.equals("--max-requests")) {
+                s.maxRequests = ServerOptions.number(ServerOptions.value(args, ++i, opt), "number of requests");
+            } else if (opt.equals("--worker-heap")) {
+                s.workerHeap = ServerOptions.number(ServerOptions.value(args, ++i, opt), "worker heap size");
+            } else if (opt.equals("--worker-timeout")) {
+                s.workerTimeout = ServerOptions.number(ServerOptions.value(args, ++i, opt), "worker timeout");
+            } else if (opt.equals("--")) {
+                s.serverArgs.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                break;
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + opt);
+            }
+        }
+        if (s.port < 0)
+            throw new IllegalArgumentException("Missing port number");
+        if (s.workers < 1)
+            throw new IllegalArgumentException("Invalid number of workers: " + s.workers);
+        if (s.serverArgs.contains("-p"))
+            throw new IllegalArgumentException("Ports of workers are chosen by the supervisor");
+        // report invalid worker options now rather than from every worker
+        ArrayList<String> check = new ArrayList<String>(s.serverArgs);
+        check.add(0, "httpserver");
+        check.add("-p");
+        check.add("0");
+        ServerOptions.parse(check.toArray(new String[check.size()]), 1);
+        return s;
+    }
+
+    /**
+     * Worker JVM. A new process gets a new generation, so that state
+     * known about the previous one (like its jobs) is not used.
+     */
+    class Worker
+    {
+        final int index;
+        int generation = 0;
+        int port;
+        Process process;
+        int requests = 0;
+
+        /**
+         * Served enough requests, waits for its jobs before it is replaced
+         */
+        boolean draining = false;
+
+        /**
+         * Why the supervisor killed the process, null if it exited on its own
+         */
+        String killed = null;
+
+        Worker(int index)
+        {
+            this.index = index;
+        }
+
+        /**
+         * Starts the worker process and waits until it is ready
+         */
+        void start() throws IOException
+        {
+            ServerSocket probe = new ServerSocket(0);
+            port = probe.getLocalPort();
+            probe.close();
+
+            ArrayList<String> cmd = new ArrayList<String>();
+            cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            if (workerHeap > 0)
+                cmd.add("-Xmx" + workerHeap + "M");
+            // a JVM that ran out of memory is not trusted to go on
+            cmd.add("-XX:OnOutOfMemoryError=kill -9 %p");
+            File archive = sharedArchive();
+            if (archive != null) {
+                cmd.add("-XX:+IgnoreUnrecognizedVMOptions");
+                cmd.add("-XX:+UnlockDiagnosticVMOptions");
+                cmd.add("-XX:SharedArchiveFile=" + archive.getPath());
+                cmd.add("-Xshare:auto");
+            }
+            cmd.add("-cp");
+            cmd.add(System.getProperty("java.class.path"));
+            cmd.add("Main");
+            cmd.add("httpserver");
+            cmd.add("-p");
+            cmd.add("127.0.0.1:" + port);
+            cmd.addAll(serverArgs);
+            ProcessBuilder pb = new ProcessBuilder(cmd);
+            pb.redirectErrorStream(true);
+            final Process p = pb.start();
+            synchronized (this) {
+                process = p;
+                requests = 0;
+                draining = false;
+                killed = null;
+                generation++;
+            }
+            pump(p.getInputStream(), "[worker-" + index + "] ");
+            Thread monitor = new Thread(new Runnable() {
+                public void run() {
+                    watch(Worker.this, p);
+                }
+            }, "worker-" + index + "-monitor");
+            monitor.setDaemon(true);
+            monitor.start();
+
+            // the worker answers /ready once it listens and has warmed up
+            final long until = System.currentTimeMillis() + WORKER_WAIT;
+            while (System.currentTimeMillis() < until) {
+                try {
+                    HttpURLConnection c = (HttpURLConnection)url("/ready").openConnection();
+                    c.setConnectTimeout(1000);
+                    c.setReadTimeout(1000);
+                    final int code = c.getResponseCode();
+                    c.disconnect();
+                    if (code == 200) {
+                        System.out.println("Worker " + index + " ready on port " + port);
+                        idle.offer(this);
+                        return;
+                    }
+                } catch (IOException e) {
+                    // not listening yet
+                }
+                try {
+                    p.exitValue();
+                    return; // died while starting, monitor starts it again
+                } catch (IllegalThreadStateException e) {
+                    // still running
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            System.err.println("Worker " + index + " did not start in time");
+            kill("start");
+        }
+
+        URL url(String path) throws IOException
+        {
+            return new URL("http", "127.0.0.1", port, path);
+        }
+
+        synchronized void kill(String reason)
+        {
+            if (killed == null)
+                killed = reason;
+            process.destroy();
+        }
+
+        /**
+         * Kills the process of the given generation, not one started since
+         */
+        synchronized void kill(String reason, int generation)
+        {
+            if (generation == this.generation)
+                kill(reason);
+        }
+    }
+
+    final BlockingQueue<Worker> idle = new LinkedBlockingQueue<Worker>();
+    final ArrayList<Worker> all = new ArrayList<Worker>();
+    volatile boolean stopping = false;
+
+    /**
+     * Worker and its generation that created a job
+     */
+    static class JobOwner
+    {
+        final Worker worker;
+        final int generation;
+        final long created = System.currentTimeMillis();
+
+        /**
+         * Result or failure was passed to the client, or the job deleted
+         */
+        volatile boolean delivered = false;
+
+        JobOwner(Worker worker, int generation)
+        {
+            this.worker = worker;
+            this.generation = generation;
+        }
+    }
+
+    final ConcurrentMap<String, JobOwner> jobs = new ConcurrentHashMap<String, JobOwner>();
+
+    final AtomicLong proxied = new AtomicLong();
+
+    /**
+     * Worker restarts, by reason
+     */
+    final ConcurrentMap<String, AtomicLong> restarts = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Class-data sharing archive made by 'make cds' next to the jar,
+     * null if there is none
+     */
+    static File sharedArchive()
+    {
+        final String jar = System.getProperty("java.class.path").split(File.pathSeparator)[0];
+        if (!jar.endsWith(".jar"))
+            return null;
+        File f = new File(jar.substring(0, jar.length() - 4) + ".jsa");
+        return f.isFile() ? f : null;
+    }
+
+    /**
+     * Copies worker output to ours, line by line with a prefix
+     */
+    static void pump(final InputStream in, final String prefix)
+    {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    BufferedReader r = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                    String line;
+                    while ((line = r.readLine()) != null)
+                        System.out.println(prefix + line);
+                } catch (IOException e) {
+                    // worker is gone
+                }
+            }
+        }, prefix.trim() + "-output");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Waits for the worker process to end and starts a new one
+     */
+    void watch(Worker w, Process p)
+    {
+        int code;
+        while (true) {
+            try {
+                code = p.waitFor();
+                break;
+            } catch (InterruptedException e) {
+                // keep watching
+            }
+        }
+        // state about the process, like results of requests to it, is stale
+        synchronized (w) {
+            w.generation++;
+        }
+        idle.remove(w);
+        if (stopping)
+            return;
+        String reason;
+        synchronized (w) {
+            reason = (w.killed != null) ? w.killed : "exited";
+        }
+        Metrics.increment(restarts, reason);
+        System.err.println("Worker " + w.index + " ended with code " + code + " (" + reason + "), restarting");
+        if (!reason.equals("recycled")) {
+            // do not spin on a worker that can not start
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            w.start();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * Client went away, the worker it was talking to is fine
+     */
+    static class ClientAbortedException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        ClientAbortedException(Throwable cause)
+        {
+            super("Client aborted the request");
+            initCause(cause);
+        }
+    }
+
+    public void start() throws IOException
+    {
+        InetSocketAddress address = ((ip != null) && (ip.length() > 0)) ? new InetSocketAddress(ip, port) : new InetSocketAddress(port);
+        HttpServer server = HttpServer.create(address, 0);
+        // a thread per worker plus the waiting requests, more are answered 503
+        server.setExecutor(new WebServer.WorkerExecutor(workers + queue, Math.max(queue, 1)));
+        server.createContext("/", new ProxyHandler());
+        server.createContext("/ready", new ReadyHandler());
+        server.createContext("/metrics", new MetricsHandler());
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                stopping = true;
+                synchronized (all) {
+                    for (Worker w : all)
+                        w.kill("stopped");
+                }
+            }
+        });
+        for (int i = 0; i < workers; i++) {
+            final Worker w = new Worker(i + 1);
+            synchronized (all) {
+                all.add(w);
+            }
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        w.start();
+                    } catch (IOException e) {
+                        e.printStackTrace(System.err);
+                    }
+                }
+            }, "worker-" + w.index + "-start");
+            t.start();
+        }
+        final Timer timer = new Timer("worker-drain", true);
+        timer.schedule(new TimerTask() {
+            public void run() {
+                checkDraining();
+            }
+        }, 5000, 5000);
+        System.out.println("Supervisor starting on " + address.getHostName() + ":" + address.getPort() + " with " + workers + " workers");
+        server.start();
+    }
+
+    /**
+     * Puts the worker back in line or replaces it once it served enough
+     * requests, after its jobs if it holds any. Nothing is done when the
+     * process of generation ended meanwhile, its restart offers the worker.
+     */
+    void release(Worker w, int generation)
+    {
+        synchronized (w) {
+            if (generation != w.generation)
+                return;
+            if ((maxRequests == 0) || (++w.requests < maxRequests)) {
+                idle.offer(w);
+                return;
+            }
+            if (!jobsOf(w).isEmpty()) {
+                w.draining = true;
+                return;
+            }
+        }
+        w.kill("recycled", generation);
+    }
+
+    /**
+     * Ids of jobs the current process of w accepted and did not deliver
+     */
+    List<String> jobsOf(Worker w)
+    {
+        ArrayList<String> ids = new ArrayList<String>();
+        synchronized (w) {
+            for (Map.Entry<String, JobOwner> j : jobs.entrySet()) {
+                JobOwner o = j.getValue();
+                if ((o.worker == w) && (o.generation == w.generation) && !o.delivered)
+                    ids.add(j.getKey());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Replaces a draining worker once it holds no more jobs
+     */
+    void drained(Worker w)
+    {
+        final int generation;
+        synchronized (w) {
+            if (!w.draining || !jobsOf(w).isEmpty())
+                return;
+            w.draining = false;
+            generation = w.generation;
+        }
+        w.kill("recycled", generation);
+    }
+
+    /**
+     * Notes jobs whose result went to the client or that the worker does
+     * not hold anymore
+     */
+    void answered(Worker w, String id, String method, int code)
+    {
+        JobOwner o = jobs.get(id);
+        if ((o != null) && ((code == 404) || (method.equals("GET") && ((code == 200) || (code == 400))) ||
+                            (method.equals("DELETE") && (code == 204))))
+            o.delivered = true;
+        drained(w);
+    }
+
+    /**
+     * Asks draining workers about jobs nobody fetched, those expired or
+     * evicted there, or older than a day, do not hold the worker anymore
+     */
+    void checkDraining()
+    {
+        ArrayList<Worker> draining = new ArrayList<Worker>();
+        synchronized (all) {
+            for (Worker w : all)
+                synchronized (w) {
+                    if (w.draining)
+                        draining.add(w);
+                }
+        }
+        final long old = System.currentTimeMillis() - 24 * 3600 * 1000L;
+        for (Worker w : draining) {
+            for (String id : jobsOf(w)) {
+                JobOwner o = jobs.get(id);
+                if (o == null)
+                    continue;
+                boolean gone = o.created < old;
+                if (!gone) {
+                    try {
+                        HttpURLConnection c = (HttpURLConnection)w.url("/jobs/" + id).openConnection();
+                        c.setRequestMethod("HEAD");
+                        c.setConnectTimeout(5000);
+                        c.setReadTimeout(5000);
+                        gone = (c.getResponseCode() == 404);
+                        c.disconnect();
+                    } catch (IOException e) {
+                        // asked again next time
+                    }
+                }
+                if (gone)
+                    o.delivered = true;
+            }
+            drained(w);
+        }
+    }
+
+    /**
+     * Headers that belong to a single connection and are not passed on
+     */
+    static boolean isHopByHop(String name)
+    {
+        return name.equalsIgnoreCase("Connection") || name.equalsIgnoreCase("Keep-Alive") ||
+               name.equalsIgnoreCase("Transfer-Encoding") || name.equalsIgnoreCase("Content-Length") ||
+               name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Expect") || name.equalsIgnoreCase("Date");
+    }
+
+    static void sendText(HttpExchange t, int code, String response) throws IOException
+    {
+        byte[] out = response.getBytes("UTF-8");
+        t.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        t.sendResponseHeaders(code, out.length);
+        OutputStream os = t.getResponseBody();
+        os.write(out);
+        os.close();
+    }
+
+    class ProxyHandler implements HttpHandler
+    {
+        public void handle(HttpExchange t) throws IOException
+        {
+            if (WebServer.WorkerExecutor.isRejected()) {
+                t.getResponseHeaders().set("Retry-After", WebServer.RETRY_AFTER);
+                sendText(t, 503, "Error 503: Server is busy, try again later");
+                return;
+            }
+            final String path = t.getRequestURI().getPath();
+            final boolean jobQuery = path.startsWith("/jobs/") && !t.getRequestMethod().equals("POST");
+            Worker w;
+            int generation;
+            if (jobQuery) {
+                // jobs live in the worker that accepted them, it is asked directly
+                JobOwner owner = jobs.get(path.substring("/jobs/".length()));
+                boolean alive = false;
+                if (owner != null) {
+                    synchronized (owner.worker) {
+                        alive = (owner.generation == owner.worker.generation);
+                    }
+                }
+                if (!alive) {
+                    sendText(t, 404, "Error 404: Unknown or expired job");
+                    return;
+                }
+                w = owner.worker;
+                generation = owner.generation;
+            } else {
+                try {
+                    w = idle.poll(WORKER_WAIT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    w = null;
+                }
+                if (w == null) {
+                    // workers busy for long or not starting at all
+                    t.getResponseHeaders().set("Retry-After", WebServer.RETRY_AFTER);
+                    sendText(t, 503, "Error 503: No worker available, try again later");
+                    return;
+                }
+                synchronized (w) {
+                    generation = w.generation;
+                }
+            }
+            String failure = "failed";
+            try {
+                failure = proxy(t, w, generation);
+            } catch (ClientAbortedException e) {
+                failure = null;
+                t.close();
+            } finally {
+                if (failure != null)
+                    w.kill(failure, generation);
+                else if (jobQuery)
+                    answered(w, path.substring("/jobs/".length()), t.getRequestMethod(), t.getResponseCode());
+                else
+                    release(w, generation);
+            }
+        }
+
+        /**
+         * @return why the worker has to be replaced or null if it is fine
+         */
+        private String proxy(HttpExchange t, Worker w, int generation) throws IOException
+        {
+            proxied.incrementAndGet();
+            final String method = t.getRequestMethod();
+            HttpURLConnection c;
+            int code;
+            try {
+                c = (HttpURLConnection)w.url(t.getRequestURI().getRawPath() + ((t.getRequestURI().getRawQuery() != null) ? "?" + t.getRequestURI().getRawQuery() : "")).openConnection();
+                c.setRequestMethod(method);
+                c.setInstanceFollowRedirects(false);
+                c.setUseCaches(false);
+                c.setConnectTimeout(5000);
+                c.setReadTimeout(workerTimeout * 1000);
+                for (Map.Entry<String, List<String>> h : t.getRequestHeaders().entrySet())
+                    if (!isHopByHop(h.getKey()))
+                        for (String v : h.getValue())
+                            c.addRequestProperty(h.getKey(), v);
+                if (method.equals("POST") || method.equals("PUT")) {
+                    c.setDoOutput(true);
+                    final String length = t.getRequestHeaders().getFirst("Content-Length");
+                    long n = -1;
+                    try {
+                        n = (length != null) ? Long.parseLong(length.trim()) : -1;
+                    } catch (NumberFormatException e) {
+                        // stream it chunked
+                    }
+                    if ((n >= 0) && (n <= Integer.MAX_VALUE))
+                        c.setFixedLengthStreamingMode((int)n);
+                    else
+                        c.setChunkedStreamingMode(65536);
+                    OutputStream os = c.getOutputStream();
+                    InputStream body = t.getRequestBody();
+                    byte[] buf = new byte[65536];
+                    while (true) {
+                        int count;
+                        try {
+                            count = body.read(buf);
+                        } catch (IOException e) {
+                            // client went away while uploading, not the worker
+                            c.disconnect();
+                            throw new ClientAbortedException(e);
+                        }
+                        if (count < 0)
+                            break;
+                        os.write(buf, 0, count);
+                    }
+                    os.close();
+                }
+                code = c.getResponseCode();
+            } catch (ClientAbortedException e) {
+                throw e;
+            } catch (SocketTimeoutException e) {
+                System.err.println("Worker " + w.index + " did not answer in time, killing it");
+                sendText(t, 504, "Error 504: Worker did not answer in time");
+                return "timeout";
+            } catch (IOException e) {
+                System.err.println("Worker " + w.index + " failed: " + e.getMessage());
+                sendText(t, 502, "Error 502: Worker failed to process the request");
+                return "failed";
+            }
+
+            for (Map.Entry<String, List<String>> h : c.getHeaderFields().entrySet())
+                if ((h.getKey() != null) && !isHopByHop(h.getKey()))
+                    t.getResponseHeaders().put(h.getKey(), h.getValue());
+            if ((code == 202) && method.equals("POST") && t.getRequestURI().getPath().startsWith("/jobs/")) {
+                final String location = c.getHeaderField("Location");
+                if ((location != null) && location.startsWith("/jobs/")) {
+                    jobs.put(location.substring("/jobs/".length()), new JobOwner(w, generation));
+                    expireJobs();
+                }
+            }
+            InputStream in = (code >= 400) ? c.getErrorStream() : c.getInputStream();
+            final int length = c.getContentLength();
+            if ((in == null) || (code == 204) || (code == 304) || method.equals("HEAD") || (length == 0)) {
+                t.sendResponseHeaders(code, -1);
+                if (in != null)
+                    in.close();
+                t.close();
+                return null;
+            }
+            t.sendResponseHeaders(code, (length > 0) ? length : 0);
+            OutputStream os = t.getResponseBody();
+            byte[] buf = new byte[65536];
+            while (true) {
+                int n;
+                try {
+                    n = in.read(buf);
+                } catch (IOException e) {
+                    // worker went away in the middle of the response
+                    w.kill((e instanceof SocketTimeoutException) ? "timeout" : "failed", generation);
+                    throw new WebServer.ResponseAbortedException(e);
+                }
+                if (n < 0)
+                    break;
+                try {
+                    os.write(buf, 0, n);
+                } catch (IOException e) {
+                    // client went away, the worker is fine
+                    c.disconnect();
+                    throw new ClientAbortedException(e);
+                }
+            }
+            in.close();
+            os.close();
+            return null;
+        }
+    }
+
+    private int draining()
+    {
+        int n = 0;
+        synchronized (all) {
+            for (Worker w : all)
+                synchronized (w) {
+                    if (w.draining)
+                        n++;
+                }
+        }
+        return n;
+    }
+
+    /**
+     * Forgets jobs of replaced workers and those older than a day
+     */
+    private void expireJobs()
+    {
+        if (jobs.size() < 1000)
+            return;
+        final long old = System.currentTimeMillis() - 24 * 3600 * 1000L;
+        for (Iterator<JobOwner> i = jobs.values().iterator(); i.hasNext(); ) {
+            JobOwner o = i.next();
+            synchronized (o.worker) {
+                if ((o.generation != o.worker.generation) || (o.created < old))
+                    i.remove();
+            }
+        }
+    }
+
+    /**
+     * Ready when at least one worker is running
+     */
+    class ReadyHandler implements HttpHandler
+    {
+        public void handle(HttpExchange t) throws IOException
+        {
+            int running = 0;
+            synchronized (all) {
+                for (Worker w : all) {
+                    synchronized (w) {
+                        if (w.process != null) {
+                            try {
+                                w.process.exitValue();
+                            } catch (IllegalThreadStateException e) {
+                                running++;
+                            }
+                        }
+                    }
+                }
+            }
+            if (running == 0) {
+                t.getResponseHeaders().set("Retry-After", WebServer.RETRY_AFTER);
+                sendText(t, 503, "Error 503: No workers running");
+            } else {
+                sendText(t, 200, "ready");
+            }
+        }
+    }
+
+    class MetricsHandler implements HttpHandler
+    {
+        public void handle(HttpExchange t) throws IOException
+        {
+            StringWriter buf = new StringWriter();
+            PrintWriter w = new PrintWriter(buf);
+            w.println("# HELP scrivepdftools_supervisor_workers Worker JVMs, by state.");
+            w.println("# TYPE scrivepdftools_supervisor_workers gauge");
+            w.println("scrivepdftools_supervisor_workers{state=\"idle\"} " + idle.size());
+            w.println("scrivepdftools_supervisor_workers{state=\"draining\"} " + draining());
+            w.println("scrivepdftools_supervisor_workers{state=\"total\"} " + workers);
+            w.println("# HELP scrivepdftools_supervisor_requests_total Requests passed to workers.");
+            w.println("# TYPE scrivepdftools_supervisor_requests_total counter");
+            w.println("scrivepdftools_supervisor_requests_total " + proxied.get());
+            w.println("# HELP scrivepdftools_supervisor_restarts_total Workers replaced, by reason.");
+            w.println("# TYPE scrivepdftools_supervisor_restarts_total counter");
+            for (Map.Entry<String, AtomicLong> r : new TreeMap<String, AtomicLong>(restarts).entrySet())
+                w.println("scrivepdftools_supervisor_restarts_total{reason=\"" + Metrics.label(r.getKey()) + "\"} " + r.getValue().get());
+            w.flush();
+            byte[] out = buf.toString().getBytes("UTF-8");
+            t.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            t.sendResponseHeaders(200, out.length);
+            OutputStream os = t.getResponseBody();
+            os.write(out);
+            os.close();
+        }
+    }
+}
@@ -20,28 +20,154 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
 
 import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
 import com.itextpdf.text.pdf.AcroFields;
+import com.itextpdf.text.pdf.PdfArray;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
 import com.itextpdf.text.pdf.PdfReader;
 import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
 
 
 /**
  * Obtains and stores text for the whole PDF (multipage document)
  *
+ * Pages are parsed when first asked for by getPage() and kept, so
+ * parsing depends on the pages used rather than on the length of the
+ * document. getInfo() still scans every page not parsed for glyphs,
+ * unless control codes are found early, which documents rarely have.
+ * A TextDump is used by one thread at a time.
  */
 public class TextDump implements Serializable
 {
     private static final long serialVersionUID = 2556750841442970184L;
 
+    /**
+     * Complete when serialized, use getInfo()
+     */
     public PdfAdditionalInfo info = null;
+
+    /**
+     * Pages parsed so far, null for the rest
+     */
     PageText text[] = null;
-    
+
+    /**
+     * Reader pages are parsed with, null when loaded from a dump
+     */
+    private transient PdfReader reader = null;
+
+    /**
+     * Binary dump pages are decoded from, null for a document
+     */
+    private transient TextDumpFile file = null;
+
+    /**
+     * Bytes of the document when known, other threads read them with
+     * their own PdfReader
+     */
+    private transient byte[] pdf = null;
+
+    /**
+     * File of the document when bytes are not kept, read the same way
+     */
+    private transient String path = null;
+
+    /**
+     * Field appearances parsed over the pages of reader, see
+     * FormOverlay, other threads create their own
+     */
+    private transient FormOverlay overlay = null;
+
+    /**
+     * Glyph flags of info are not computed yet
+     */
+    private transient boolean infoPending = false;
+
+    /**
+     * Threads extracting pages in parallel, set by -Dscrivepdftools.pageThreads,
+     * 1 extracts pages on the calling thread only
+     */
+    static final int PAGE_THREADS = Integer.getInteger("scrivepdftools.pageThreads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Fewest pages worth opening another reader for
+     */
+    static final int PAGES_PER_THREAD = 4;
+
+    private static ExecutorService pagePool = null;
+
+    /**
+     * Pool shared by all documents, so that parallel requests do not
+     * multiply the number of threads
+     */
+    private static synchronized ExecutorService pagePool() {
+        if (pagePool == null) {
+            pagePool = Executors.newFixedThreadPool(PAGE_THREADS - 1, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "page-text-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pagePool;
+    }
+
+    /**
+     * @return reader of the document with forms flattened, reader itself
+     * when there is nothing to flatten
+     */
     public static PdfReader createFlattened(PdfReader reader) throws IOException, DocumentException {
+        if (!hasFormsOrFreeText(reader))
+            return reader;
+        return new PdfReader(flatten(reader));
+    }
+
+    static boolean hasFormsOrFreeText(PdfReader reader) {
+        if (!reader.getAcroFields().getFields().isEmpty())
+            return true;
+        final int n = reader.getNumberOfPages();
+        for (int i = 1; i <= n; i++) {
+            PdfArray annots = reader.getPageN(i).getAsArray(PdfName.ANNOTS);
+            if (annots == null)
+                continue;
+            for (int j = 0; j < annots.size(); j++) {
+                PdfDictionary annot = annots.getAsDict(j);
+                if ((annot != null) && PdfName.FREETEXT.equals(annot.getAsName(PdfName.SUBTYPE)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return bytes of the document with forms flattened
+     */
+    public static byte[] flatten(PdfReader reader) throws IOException, DocumentException {
         // This is here to flatten forms so that texts in them can be read
         ByteArrayOutputStream buf = new ByteArrayOutputStream();
         PdfStamper stamper = new PdfStamper(reader, buf);
@@ -57,23 +183,353 @@ public class TextDump implements Serializable
         stamper.setFormFlattening(true);
         stamper.setFreeTextFlattening(true);
         stamper.close();
-        return new PdfReader(buf.toByteArray());
+        return buf.toByteArray();
     }
 
+    /**
+     * Parses pages with reader as needed, reader must not be changed
+     * while the TextDump is used
+     */
     public TextDump(PdfReader reader) throws IOException {
-        
+        this.reader = reader;
+        text = new PageText[reader.getNumberOfPages()];
         info = new PdfAdditionalInfo();
-        info.numberOfPages = reader.getNumberOfPages();
-        text = new PageText[info.numberOfPages];
-        for (int i = 1; i <= info.numberOfPages; i++) {
-            text[i - 1] = new PageText(reader, i);
-            info.containsControlCodes = info.containsControlCodes || text[i - 1].containsControlCodes();
+        info.numberOfPages = text.length;
+        infoPending = true;
+        if (text.length > 0) {
+            final Rectangle r = PageText.getCropBoxRotated(reader, 1);
+            info.firstPageWidth = r.getWidth();
+            info.firstPageHeight = r.getHeight();
+        }
+    }
+
+    /**
+     * Parses pages of a serialized document as needed, several at once
+     * when prefetched
+     */
+    public TextDump(byte[] pdf) throws IOException {
+        this(openReader(pdf));
+        this.pdf = pdf;
+    }
+
+    /**
+     * Text of a document as it shows with forms and FreeText annotations
+     * flattened. Documents without them are parsed as they are. With
+     * overlay the appearances PdfStamper would draw are parsed over the
+     * pages, see FormOverlay. Otherwise, or when FormOverlay can not tell
+     * them, the document is flattened and read again.
+     *
+     * Pages can be prefetched in parallel in all cases, from the file of
+     * a FileStream or from the bytes read from pdf.
+     */
+    public static TextDump open(InputStream pdf, boolean overlay) throws IOException, DocumentException {
+        String path = null;
+        byte[] bytes = null;
+        PdfReader reader;
+        if (pdf instanceof Engine.FileStream) {
+            path = ((Engine.FileStream)pdf).getFile().getPath();
+            reader = openReader(path);
+        } else {
+            bytes = IOUtils.toByteArray(pdf);
+            reader = openReader(bytes);
+        }
+        Metrics.pagesProcessed(reader.getNumberOfPages());
+        FormOverlay forms = null;
+        if (hasFormsOrFreeText(reader)) {
+            forms = overlay ? FormOverlay.create(reader) : null;
+            if (forms == null) {
+                reader.close();
+                return new TextDump(flatten((path != null) ? new PdfReader(path, null, false) : new PdfReader(bytes)));
+            }
+        }
+        TextDump text = new TextDump(reader);
+        text.pdf = bytes;
+        text.path = path;
+        text.overlay = forms;
+        return text;
+    }
+
+    /**
+     * Reader over the document text is parsed from, to be stamped. That
+     * is the flattened document if it was flattened, so TextDumps opened
+     * with overlay are not for stamping.
+     */
+    public PdfReader openDocument() throws IOException {
+        if (pdf != null)
+            return new PdfReader(pdf);
+        return new PdfReader(path, null, false);
+    }
+
+    /**
+     * Decodes pages of a binary dump as needed
+     */
+    TextDump(TextDumpFile file) {
+        this.file = file;
+        text = new PageText[file.getNumberOfPages()];
+        info = file.getInfo();
+    }
+
+    /**
+     * Partial reading over the bytes, objects are parsed as pages need
+     * them and the array is shared, not copied
+     */
+    static PdfReader openReader(byte[] pdf) throws IOException {
+        return new PdfReader(new RandomAccessFileOrArray(new RandomAccessSourceFactory().createSource(pdf)), null);
+    }
+
+    /**
+     * Partial reading of a file, mapped as Engine.openReader() does
+     */
+    static PdfReader openReader(String path) throws IOException {
+        return new PdfReader(new RandomAccessFileOrArray(new RandomAccessSourceFactory().createBestSource(path)), null);
+    }
+
+    public int getNumberOfPages() {
+        return text.length;
+    }
+
+    /**
+     * @param iPage  page number from 1
+     */
+    public PageText getPage(int iPage) throws IOException {
+        PageText page = text[iPage - 1];
+        if (page == null) {
+            Deadline.check();
+            page = text[iPage - 1] = (file != null) ? file.readPage(iPage) : new PageText(reader, iPage, overlay);
+        }
+        return page;
+    }
+
+    /**
+     * Glyph flags need the text of every page. Parsed pages tell theirs,
+     * the rest are only scanned for glyphs, in parallel like prefetch(),
+     * until both flags are set.
+     */
+    public PdfAdditionalInfo getInfo() throws IOException {
+        if (!infoPending)
+            return info;
+        ArrayList<Integer> unparsed = new ArrayList<Integer>();
+        for (int i = 1; i <= text.length; i++) {
+            if (text[i - 1] == null) {
+                unparsed.add(i);
+                continue;
+            }
             info.containsGlyphs = info.containsGlyphs || text[i - 1].containsGlyphs();
+            info.containsControlCodes = info.containsControlCodes || text[i - 1].containsControlCodes();
+        }
+        if (!(info.containsGlyphs && info.containsControlCodes) && !unparsed.isEmpty()) {
+            final int[] todo = new int[unparsed.size()];
+            for (int i = 0; i < todo.length; i++)
+                todo[i] = unparsed.get(i).intValue();
+            Flags flags = new Flags(info);
+            try {
+                run(todo, flags);
+            } catch (IOException e) {
+                // pages left unscanned can not change the flags
+                if (!flags.done())
+                    throw e;
+            } catch (RuntimeException e) {
+                if (!flags.done())
+                    throw e;
+            }
+            info.containsGlyphs = flags.glyphs.get();
+            info.containsControlCodes = flags.controlCodes.get();
         }
-        info.firstPageWidth = text[0].pageSizeRotated.getWidth();
-        info.firstPageHeight = text[0].pageSizeRotated.getHeight();
+        infoPending = false;
+        return info;
+    }
+
+    /**
+     * Parses pages that will be needed, in parallel when the bytes of the
+     * document are known. Pages are stored by number, so the result is the
+     * same as when parsed one by one.
+     *
+     * @param pages  page numbers from 1, others are ignored
+     */
+    public void prefetch(Collection<Integer> pages) throws IOException {
+        SortedSet<Integer> missing = new TreeSet<Integer>();
+        for (Integer i : pages)
+            if ((i.intValue() >= 1) && (i.intValue() <= text.length) && (text[i.intValue() - 1] == null))
+                missing.add(i);
+        final int[] todo = new int[missing.size()];
+        int n = 0;
+        for (Integer i : missing)
+            todo[n++] = i.intValue();
+        if (file != null) {
+            // decoding is cheap, no threads for it
+            for (int i : todo)
+                getPage(i);
+        } else
+            run(todo, null);
     }
-    
+
+    /**
+     * Extracts or scans pages on the threads of the pool, when the bytes
+     * of the document are known and there are enough of them
+     */
+    private void run(int[] todo, Flags flags) throws IOException {
+        final int threads = ((pdf == null) && (path == null)) ? 1 : Math.min(PAGE_THREADS, todo.length / PAGES_PER_THREAD);
+        if (threads > 1)
+            runParallel(todo, threads, flags);
+        else
+            work(reader, overlay, todo, new AtomicInteger(), new AtomicBoolean(), flags);
+    }
+
+    public void prefetchAll() throws IOException {
+        ArrayList<Integer> pages = new ArrayList<Integer>(text.length);
+        for (int i = 1; i <= text.length; i++)
+            pages.add(i);
+        prefetch(pages);
+    }
+
+    /**
+     * Dumps are complete, so that they can be used without the document
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        prefetchAll();
+        getInfo();
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Glyph flags found so far, shared by the threads scanning pages
+     */
+    private static class Flags {
+        final AtomicBoolean glyphs, controlCodes;
+
+        Flags(PdfAdditionalInfo info) {
+            glyphs = new AtomicBoolean(info.containsGlyphs);
+            controlCodes = new AtomicBoolean(info.containsControlCodes);
+        }
+
+        boolean done() {
+            return glyphs.get() && controlCodes.get();
+        }
+    }
+
+    /**
+     * Extracts pages not taken yet until there are none left or another
+     * thread failed. With flags the pages are only scanned for glyphs,
+     * until both flags are set.
+     */
+    private void work(PdfReader reader, FormOverlay overlay, int[] todo, AtomicInteger next, AtomicBoolean failed, Flags flags) throws IOException {
+        try {
+            int i;
+            while (!failed.get() && ((flags == null) || !flags.done()) && ((i = next.getAndIncrement()) < todo.length)) {
+                Deadline.check();
+                if (flags == null) {
+                    text[todo[i] - 1] = new PageText(reader, todo[i], overlay);
+                    continue;
+                }
+                boolean[] found = PageText.scanGlyphs(reader, todo[i], overlay);
+                if (found[0])
+                    flags.glyphs.set(true);
+                if (found[1])
+                    flags.controlCodes.set(true);
+            }
+        } catch (IOException e) {
+            failed.set(true);
+            throw e;
+        } catch (RuntimeException e) {
+            failed.set(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Extracts or scans pages with its own reader on a thread of the pool
+     */
+    private class PageWorker implements Callable<Object> {
+        final int[] todo;
+        final AtomicInteger next;
+        final AtomicBoolean failed;
+        final Flags flags;
+        final Long deadline;
+
+        /**
+         * Set by whoever comes first, the worker when it starts or the
+         * document when it took all pages and does not wait for it
+         */
+        final AtomicBoolean taken = new AtomicBoolean();
+
+        PageWorker(int[] todo, AtomicInteger next, AtomicBoolean failed, Flags flags, Long deadline) {
+            this.todo = todo;
+            this.next = next;
+            this.failed = failed;
+            this.flags = flags;
+            this.deadline = deadline;
+        }
+
+        public Object call() throws IOException {
+            if (!taken.compareAndSet(false, true))
+                return null;
+            if (deadline != null)
+                Deadline.set(deadline.longValue());
+            try {
+                PdfReader reader = (pdf != null) ? openReader(pdf) : openReader(path);
+                try {
+                    FormOverlay forms = null;
+                    if (overlay != null) {
+                        forms = FormOverlay.create(reader);
+                        if (forms == null)
+                            throw new IOException("Form appearances differ between readers");
+                    }
+                    work(reader, forms, todo, next, failed, flags);
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                Deadline.clear();
+            }
+            return null;
+        }
+    }
+
+    private void runParallel(int[] todo, int threads, Flags flags) throws IOException {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        List<PageWorker> workers = new ArrayList<PageWorker>();
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (int t = 1; t < threads; t++) {
+            PageWorker w = new PageWorker(todo, next, failed, flags, Deadline.get());
+            workers.add(w);
+            futures.add(pagePool().submit(w));
+        }
+        IOException error = null;
+        try {
+            work(reader, overlay, todo, next, failed, flags);
+        } finally {
+            // workers still queued behind other documents are not waited
+            // for, the rest are, also when this thread failed
+            for (int t = 0; t < workers.size(); t++) {
+                if (workers.get(t).taken.compareAndSet(false, true))
+                    continue;
+                try {
+                    futures.get(t).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = new IOException("Interrupted while extracting text");
+                    break;
+                } catch (ExecutionException e) {
+                    if (error != null)
+                        continue;
+                    if (e.getCause() instanceof IOException)
+                        error = (IOException)e.getCause();
+                    else if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException)e.getCause();
+                    else
+                        throw (Error)e.getCause();
+                }
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    /**
+     * Reads a dump serialized with ObjectOutputStream, see TextDumpFile
+     * for the binary format
+     */
     static TextDump load(InputStream in) throws IOException, ClassNotFoundException {
         ObjectInputStream dump = new ObjectInputStream(in);
         TextDump text = null;
@@ -0,0 +1,256 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Binary text dump, written by normalize and read by the text engines.
+ * The file is memory mapped and a page is decoded only when asked for.
+ *
+ * Layout, big endian: magic "SPTD", version, flags, number of pages,
+ * glyph flags as bytes, first page width and height, then for every page
+ * offset (long), stored length and decoded length of its record, then the
+ * records as written by PageText.toBytes(). With DEFLATED records are
+ * compressed one by one, so pages are still read independently.
+ *
+ * Readers refuse versions newer than theirs and flags they do not know.
+ * Dumps serialized with ObjectOutputStream are still read by load() and
+ * can be rewritten with convert-dump.
+ */
+public class TextDumpFile
+{
+    public static final String USAGE = "java -jar scrivepdftools.jar convert-dump old.dump new.dump [--compress]";
+
+    static final byte[] MAGIC = {'S', 'P', 'T', 'D'};
+    static final int VERSION = 1;
+    static final int DEFLATED = 1;
+
+    static final int HEADER = 4 + 4 + 4 + 4 + 2 + 4 + 4;
+    static final int INDEX_ENTRY = 8 + 4 + 4;
+
+    /**
+     * Deflate shrinks data at most about 1032 times, stored lengths larger
+     * than that are corrupted
+     */
+    static final long MAX_INFLATE = 1032;
+
+    private final ByteBuffer buf;
+    private final int flags;
+    private final PdfAdditionalInfo info = new PdfAdditionalInfo();
+
+    private TextDumpFile(ByteBuffer buf) throws IOException
+    {
+        this.buf = buf;
+        try {
+            buf.position(MAGIC.length);
+            final int version = buf.getInt();
+            if (version < 1)
+                throw new IOException("Invalid text dump version " + version);
+            if (version > VERSION)
+                throw new IOException("Text dump version " + version + " is newer than supported version " + VERSION);
+            flags = buf.getInt();
+            if ((flags & ~DEFLATED) != 0)
+                throw new IOException("Unknown text dump flags: " + flags);
+            info.numberOfPages = buf.getInt();
+            info.containsGlyphs = buf.get() != 0;
+            info.containsControlCodes = buf.get() != 0;
+            info.firstPageWidth = buf.getFloat();
+            info.firstPageHeight = buf.getFloat();
+            if ((info.numberOfPages < 0) || ((long)info.numberOfPages * INDEX_ENTRY > buf.remaining()))
+                throw new IOException("Corrupted text dump");
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated text dump");
+        }
+    }
+
+    public int getNumberOfPages()
+    {
+        return info.numberOfPages;
+    }
+
+    public PdfAdditionalInfo getInfo()
+    {
+        return info;
+    }
+
+    /**
+     * @param iPage  page number from 1
+     */
+    public PageText readPage(int iPage) throws IOException
+    {
+        ByteBuffer b = buf.duplicate();
+        b.position(HEADER + (iPage - 1) * INDEX_ENTRY);
+        final long offset = b.getLong();
+        final int stored = b.getInt(), length = b.getInt();
+        if ((offset < HEADER) || (stored < 0) || (length < 0) || (offset + stored > b.limit()) ||
+            (((flags & DEFLATED) != 0) && (length > MAX_INFLATE * stored + 64)))
+            throw new IOException("Corrupted text dump index at page " + iPage);
+        b.position((int)offset);
+        b.limit((int)offset + stored);
+        if ((flags & DEFLATED) != 0) {
+            byte[] in = new byte[stored], out = new byte[length];
+            b.get(in);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(in);
+                if ((inflater.inflate(out) != length) || !inflater.finished())
+                    throw new IOException("Corrupted page " + iPage + " in text dump");
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted page " + iPage + " in text dump: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            b = ByteBuffer.wrap(out);
+        }
+        return PageText.fromBytes(b);
+    }
+
+    static boolean isBinary(byte[] head, int length)
+    {
+        if (length < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++)
+            if (head[i] != MAGIC[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Reads a dump in either format. Binary dumps are mapped, their pages
+     * are decoded as the TextDump needs them.
+     */
+    public static TextDump load(File file) throws IOException, ClassNotFoundException
+    {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            byte[] head = new byte[MAGIC.length];
+            final int length = Math.max(f.read(head), 0);
+            if (!isBinary(head, length)) {
+                InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+                try {
+                    return TextDump.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+            if (f.length() > Integer.MAX_VALUE)
+                throw new IOException("Text dump too large to map: " + file);
+            FileChannel channel = f.getChannel();
+            // the mapping stays valid when the file is closed
+            return new TextDump(new TextDumpFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+        } finally {
+            f.close();
+        }
+    }
+
+    /**
+     * Writes all pages of text, parsing those not parsed yet
+     */
+    public static void write(TextDump text, OutputStream os, boolean compress) throws IOException
+    {
+        text.prefetchAll();
+        final PdfAdditionalInfo info = text.getInfo();
+        final int pages = text.getNumberOfPages();
+        byte[][] records = new byte[pages][];
+        int[] lengths = new int[pages];
+        for (int i = 1; i <= pages; i++) {
+            byte[] record = text.getPage(i).toBytes();
+            lengths[i - 1] = record.length;
+            if (compress) {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream(record.length / 2);
+                DeflaterOutputStream deflater = new DeflaterOutputStream(buf);
+                deflater.write(record);
+                deflater.close();
+                record = buf.toByteArray();
+            }
+            records[i - 1] = record;
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 65536));
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(compress ? DEFLATED : 0);
+        out.writeInt(pages);
+        out.writeByte(info.containsGlyphs ? 1 : 0);
+        out.writeByte(info.containsControlCodes ? 1 : 0);
+        out.writeFloat(info.firstPageWidth);
+        out.writeFloat(info.firstPageHeight);
+        long offset = HEADER + (long)pages * INDEX_ENTRY;
+        for (int i = 0; i < pages; i++) {
+            out.writeLong(offset);
+            out.writeInt(records[i].length);
+            out.writeInt(lengths[i]);
+            offset += records[i].length;
+        }
+        for (byte[] record : records)
+            out.write(record);
+        out.flush();
+    }
+
+    public static void write(TextDump text, String path, boolean compress) throws IOException
+    {
+        // pages are decoded first, text may be mapped from path
+        text.prefetchAll();
+        OutputStream out = new FileOutputStream(path);
+        try {
+            write(text, out, compress);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Rewrites a dump of either format in the binary format
+     */
+    public static void convert(String[] args, int from) throws IOException, ClassNotFoundException
+    {
+        String source = null, target = null;
+        boolean compress = false;
+        for (int i = from; i < args.length; i++) {
+            if (args[i].equals("--compress"))
+                compress = true;
+            else if (args[i].startsWith("-"))
+                throw new IllegalArgumentException("Unknown option: " + args[i]);
+            else if (source == null)
+                source = args[i];
+            else if (target == null)
+                target = args[i];
+            else
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+        }
+        if (target == null)
+            throw new IllegalArgumentException("Expected old and new dump file");
+        write(load(new File(source)), target, compress);
+    }
+}
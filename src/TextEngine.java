@@ -16,7 +16,7 @@
  *
  */
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -29,60 +29,77 @@ import com.itextpdf.text.pdf.PdfStamper;
 
 abstract class TextEngine extends Engine {
 
-    protected PdfStamper stamper = null;
-    protected TextDump text = null;
-
     /**
-     * Derived class should use this method to provide it's spec
-     * @return
+     * State of one run of a text engine
      */
-    public abstract YamlSpec getSpec();
+    static class Context extends Engine.Context {
+        PdfStamper stamper = null;
+        TextDump text = null;
+
+        Context(Object spec) {
+            super(spec);
+        }
+
+        YamlSpec getSpec() {
+            return (YamlSpec)spec;
+        }
+    }
+
+    @Override
+    public Engine.Context newContext(Object spec) {
+        return new Context(spec);
+    }
 
     /**
      * Derived class should use this method to provide it's stamped output path (null = no stamping)
      * @return
      */
-    public abstract String   getStampedOutput();
+    public abstract String   getStampedOutput(YamlSpec spec);
    
     /**
      * Main proc of a text engine
      * @param out
      */
-    public abstract void execute(OutputStream out) throws IOException, DocumentException;
+    public abstract void execute(Context ctx, OutputStream out) throws IOException, DocumentException;
 
     @Override
-    public void execute(InputStream pdf, OutputStream out) throws IOException, DocumentException
+    public void execute(Engine.Context c, InputStream pdf, OutputStream out) throws IOException, DocumentException
     {
-        YamlSpec spec = getSpec();
-        text = null;
+        final Context ctx = (Context)c;
+        YamlSpec spec = ctx.getSpec();
+        final String stampedOutput = getStampedOutput(spec);
         if (spec.dumpPath != null) {
             try {
-                text = TextDump.load(new FileInputStream(spec.dumpPath));
+                ctx.text = TextDumpFile.load(new File(spec.dumpPath));
             } catch (ClassNotFoundException e) {
                 e.printStackTrace(System.err);
             }
         }
         PdfReader reader = null;
-        stamper = null;        
-        if ((getStampedOutput() != null) || (text == null)) {
+        if ((stampedOutput != null) || (ctx.text == null)) {
             if ((pdf == null) && (spec.input != null)) {
-                pdf = new FileInputStream(spec.input);
+                pdf = new FileStream(spec.input);
             }
-            if (text == null) {
-                reader = TextDump.createFlattened(new PdfReader(pdf));
-                text = new TextDump(reader);
+            if (ctx.text == null) {
+                // text is parsed with its own reader, as stamping
+                // changes the pages of reader. Frames are stamped over
+                // a flattened document, so that field appearances do
+                // not cover them.
+                ctx.text = TextDump.open(pdf, stampedOutput == null);
+                if (stampedOutput != null)
+                    reader = ctx.text.openDocument();
             } else
-                reader = new PdfReader(pdf);
-            if (getStampedOutput() != null) {
-                stamper = new PdfStamper(reader, new FileOutputStream(getStampedOutput()));
+                reader = openReader(pdf);
+            if (stampedOutput != null) {
+                ctx.stamper = new PdfStamper(reader, new FileOutputStream(stampedOutput));
             }
         }
         
-        execute(out);
+        execute(ctx, out);
 
         // close streams
-        if( stamper!=null ) {
-            stamper.close();
+        if( ctx.stamper!=null ) {
+            ctx.stamper.close();
         }
         if ( reader!=null ) {
             reader.close();
@@ -92,4 +109,19 @@ abstract class TextEngine extends Engine {
         }
         
     }
+
+    /**
+     * Works on the text of the pipeline document, so that consecutive
+     * text stages share a single TextDump. Stamping is not supported.
+     */
+    @Override
+    public void apply(Engine.Context c, Pipeline.Document doc, OutputStream out) throws IOException, DocumentException
+    {
+        final Context ctx = (Context)c;
+        if (getStampedOutput(ctx.getSpec()) != null)
+            System.err.println("Warning: stampedOutput is ignored in a pipeline");
+        ctx.stamper = null;
+        ctx.text = doc.getText();
+        execute(ctx, out);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Runs engines over bundled sample documents, so that fonts, the seal
+ * marker, SnakeYAML and iText classes are loaded and the JIT has compiled
+ * the hot paths before real requests arrive.
+ */
+public class Warmup
+{
+    public static final String USAGE = "java -jar scrivepdftools.jar warmup training.txt";
+
+    static final String SAMPLE_PDF = "assets/sealmarker.pdf";
+
+    /**
+     * Commands and their bundled specs, null for an empty spec
+     */
+    static final String[][] COMMANDS = {
+        {"add-verification-pages", "assets/warmup-seal.json"},
+        {"find-texts", "assets/warmup-find-texts.json"},
+        {"extract-texts", "assets/warmup-extract-texts.json"},
+        {"normalize", null},
+        {"remove-javascript", null}
+    };
+
+    static byte[] load(String res) throws IOException
+    {
+        if (res == null)
+            return "{}".getBytes("UTF-8");
+        InputStream in = Main.getResourceAsStream(res);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Runs every command the given number of times. Failures are
+     * reported but do not stop the warmup.
+     * @return number of failed runs
+     */
+    public static int run(int rounds) throws IOException
+    {
+        final byte[] pdf = load(SAMPLE_PDF);
+        final byte[][] specs = new byte[COMMANDS.length][];
+        for (int i = 0; i < COMMANDS.length; i++)
+            specs[i] = load(COMMANDS[i][1]);
+
+        int failed = 0;
+        final long start = System.currentTimeMillis();
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < COMMANDS.length; i++) {
+                try {
+                    (new Main()).execute(COMMANDS[i][0], new ByteArrayInputStream(specs[i]), new ByteArrayInputStream(pdf), new NullOutputStream());
+                } catch (Exception e) {
+                    if (failed++ == 0)
+                        e.printStackTrace(System.err);
+                    System.err.println("Warning: Warmup of " + COMMANDS[i][0] + " failed: " + e.getMessage());
+                }
+            }
+        }
+        System.out.println("Warmup finished: " + rounds + " rounds in " + (System.currentTimeMillis() - start) + " ms" + ((failed > 0) ? ", " + failed + " failed" : ""));
+        return failed;
+    }
+
+    /**
+     * Runs commands of a training file, lines are 'command spec.json
+     * [spec2.json] ...'. Run with -XX:ArchiveClassesAtExit it records the
+     * classes that real commands load into a class-data sharing archive.
+     * @return number of failed specs
+     */
+    public static int train(String file) throws IOException
+    {
+        int done = 0;
+        int failed = 0;
+        final long start = System.currentTimeMillis();
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = r.readLine()) != null) {
+                line = line.trim();
+                if ((line.length() == 0) || line.startsWith("#"))
+                    continue;
+                String[] words = line.split("\\s+");
+                Engine engine = Main.getEngine(words[0]);
+                if (engine == null) {
+                    failed++;
+                    continue;
+                }
+                for (int i = 1; i < words.length; i++) {
+                    try {
+                        engine.execute(words[i]);
+                        done++;
+                    } catch (Exception e) {
+                        failed++;
+                        System.err.println("Warning: Training with " + words[i] + " failed: " + e);
+                    }
+                }
+            }
+        } finally {
+            r.close();
+        }
+        System.err.println("Training finished: " + done + " specs in " + (System.currentTimeMillis() - start) + " ms" + ((failed > 0) ? ", " + failed + " failed" : ""));
+        return failed;
+    }
+}
@@ -0,0 +1,428 @@
+/*
+ *  Copyright (C) 2015 Scrive AB
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU Affero General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Affero General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Affero General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Watches an inbox directory for pairs of a spec (name.json, name.yaml
+ * or name.yml) and a PDF (name.pdf), runs a command on each pair and
+ * moves the result to an outbox as name.result.pdf or name.result.yaml.
+ * Pairs that fail go to an error directory together with name.error
+ * holding the message.
+ *
+ * The inbox is polled. A file is taken once its size and modification
+ * time did not change for the settle time, so files still being written
+ * are left alone. Writers that can should write under a name starting
+ * with a dot or ending with .tmp or .part and rename when done, those are
+ * never taken. Taken pairs are renamed to a directory of the watcher,
+ * inbox/.processing-host-pid, first, so several watchers may share an
+ * inbox. A watcher holds a lock on its directory while it runs, pairs
+ * left in directories nobody holds, by watchers that were killed, go
+ * back to the inbox on start, as do those in its own directory.
+ */
+public class Watcher
+{
+    public static final String USAGE = "java -jar scrivepdftools.jar watch command inbox outbox [-j threads] [--errors dir] [--poll milliseconds] [--settle milliseconds]";
+
+    static final String[] SPEC_SUFFIXES = {".json", ".yaml", ".yml"};
+    static final String PROCESSING = ".processing";
+
+    public String command;
+    public File inbox;
+    public File outbox;
+
+    /**
+     * Where failed pairs go, by default 'errors' next to the outbox
+     */
+    public File errors = null;
+    public int threads = Runtime.getRuntime().availableProcessors();
+    public long poll = 500;
+    public long settle = 1000;
+
+    /**
+     * Parses options following the 'watch' command.
+     *
+     * @throws IllegalArgumentException with a message suitable for the user
+     */
+    public static Watcher parse(String[] args, int from)
+    {
+        Watcher w = new Watcher();
+        ArrayList<String> positional = new ArrayList<String>();
+        for (int i = from; i < args.length; i++) {
+            final String opt = args[i];
+            if (opt.equals("-j")) {
+                w.threads = ServerOptions.number(ServerOptions.value(args, ++i, opt), "number of threads");
+            } else if (opt.equals("--errors")) {
+                w.errors = new File(ServerOptions.value(args, ++i, opt));
+            } else if (opt.equals("--poll")) {
+                w.poll = ServerOptions.number(ServerOptions.value(args, ++i, opt), "poll interval");
+            } else if (opt.equals("--settle")) {
+                w.settle = ServerOptions.number(ServerOptions.value(args, ++i, opt), "settle time");
+            } else if (opt.startsWith("-")) {
+                throw new IllegalArgumentException("Unknown option: " + opt);
+            } else {
+                positional.add(opt);
+            }
+        }
+        if (positional.size() != 3)
+            throw new IllegalArgumentException("Expected command, inbox and outbox");
+        w.command = positional.get(0);
+        if (Main.getEngine(w.command) == null)
+            throw new IllegalArgumentException("Unknown command: " + w.command);
+        w.inbox = new File(positional.get(1));
+        w.outbox = new File(positional.get(2));
+        if (w.errors == null)
+            w.errors = new File(w.outbox.getAbsoluteFile().getParentFile(), "errors");
+        if (w.threads < 1)
+            throw new IllegalArgumentException("Invalid number of threads: " + w.threads);
+        if (w.poll < 1)
+            throw new IllegalArgumentException("Invalid poll interval: " + w.poll);
+        return w;
+    }
+
+    /**
+     * Size and modification time of a file when first seen that way
+     */
+    static class Seen
+    {
+        final long size;
+        final long modified;
+        final long since;
+
+        Seen(long size, long modified, long since)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.since = since;
+        }
+    }
+
+    private Map<String, Seen> seen = new HashMap<String, Seen>();
+
+    /**
+     * host-pid, names files of this watcher in shared directories
+     */
+    private final String owner = OwnedDirectory.ownerName();
+    private File processing;
+
+    /**
+     * Kept referenced, so that its file is not closed and unlocked
+     */
+    private FileLock processingLock;
+    private ExecutorService pool;
+
+    final AtomicInteger done = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+
+    static void mkdirs(File dir) throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can not create directory: " + dir);
+    }
+
+    static boolean isSpec(String name)
+    {
+        for (String suffix : SPEC_SUFFIXES)
+            if (name.endsWith(suffix))
+                return true;
+        return false;
+    }
+
+    static String baseName(String name)
+    {
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    static boolean isTemporary(String name)
+    {
+        return name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part");
+    }
+
+    /**
+     * Watches until the process is killed
+     */
+    public void run() throws IOException
+    {
+        mkdirs(inbox);
+        mkdirs(outbox);
+        mkdirs(errors);
+        processing = new File(inbox, PROCESSING + "-" + owner);
+        mkdirs(processing);
+        processingLock = OwnedDirectory.lock(processing);
+        if (processingLock == null)
+            throw new IOException("Directory is used by another watcher: " + processing);
+        recover();
+
+        pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "watch-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // bounds pairs taken from the inbox, the rest wait there until
+        // a thread is free
+        final Semaphore slots = new Semaphore(2 * threads);
+        System.out.println("Watching " + inbox + " for " + command + " with " + threads + " threads");
+
+        while (true) {
+            List<String[]> pairs = scan();
+            for (final String[] pair : pairs) {
+                slots.acquireUninterruptibly();
+                if (!claim(pair)) {
+                    slots.release();
+                    continue;
+                }
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            process(pair[0], pair[1]);
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+                report();
+            }
+            report();
+            if (!pairs.isEmpty())
+                continue;
+            try {
+                Thread.sleep(poll);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private long reported = System.currentTimeMillis();
+    private int reportedDone = 0;
+    private int reportedFailed = 0;
+
+    /**
+     * Prints progress every 10 seconds while there is some
+     */
+    private void report()
+    {
+        final long now = System.currentTimeMillis();
+        if ((now - reported < 10000) || ((done.get() == reportedDone) && (failed.get() == reportedFailed)))
+            return;
+        reported = now;
+        reportedDone = done.get();
+        reportedFailed = failed.get();
+        System.out.println("Watch: " + reportedDone + " done, " + reportedFailed + " failed");
+    }
+
+    /**
+     * Moves pairs left in processing directories of watchers that ended
+     * back to the inbox, also those in our own directory, left by a
+     * previous run with the same host and pid as in containers
+     */
+    private void recover() throws IOException
+    {
+        moveBack(processing);
+        File[] dirs = inbox.listFiles();
+        if (dirs == null)
+            return;
+        for (File dir : dirs) {
+            // locking our own again would unlock it when closed
+            if (!dir.getName().startsWith(PROCESSING) || !dir.isDirectory() || dir.equals(processing))
+                continue;
+            FileLock lock = OwnedDirectory.lock(dir);
+            if (lock == null)
+                continue;
+            try {
+                moveBack(dir);
+            } finally {
+                OwnedDirectory.unlock(dir, lock);
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Moves all files but the lock of a processing directory to the inbox
+     */
+    private void moveBack(File dir)
+    {
+        File[] files = dir.listFiles();
+        for (File f : (files != null) ? files : new File[0]) {
+            if (f.getName().equals(OwnedDirectory.LOCK))
+                continue;
+            if (f.renameTo(new File(inbox, f.getName())))
+                System.out.println("Watch: Recovered " + f.getName());
+        }
+    }
+
+    /**
+     * @return complete pairs as {spec name, pdf name}, oldest first
+     */
+    List<String[]> scan()
+    {
+        final long now = System.currentTimeMillis();
+        File[] files = inbox.listFiles();
+        ArrayList<String[]> pairs = new ArrayList<String[]>();
+        if (files == null)
+            return pairs;
+
+        Map<String, Seen> current = new HashMap<String, Seen>();
+        Map<String, String> specs = new HashMap<String, String>();
+        Map<String, File> pdfs = new HashMap<String, File>();
+        final Map<String, Long> modified = new HashMap<String, Long>();
+        for (File f : files) {
+            final String name = f.getName();
+            if (isTemporary(name) || !f.isFile())
+                continue;
+            final long size = f.length();
+            final long time = f.lastModified();
+            Seen s = seen.get(name);
+            if ((s == null) || (s.size != size) || (s.modified != time))
+                s = new Seen(size, time, now);
+            current.put(name, s);
+            if (now - s.since < settle)
+                continue;
+            if (isSpec(name)) {
+                specs.put(baseName(name), name);
+            } else if (name.endsWith(".pdf")) {
+                pdfs.put(baseName(name), f);
+                modified.put(baseName(name), time);
+            }
+        }
+        seen = current;
+
+        for (Map.Entry<String, String> spec : specs.entrySet()) {
+            File pdf = pdfs.get(spec.getKey());
+            if (pdf != null)
+                pairs.add(new String[] {spec.getValue(), pdf.getName()});
+        }
+        Collections.sort(pairs, new Comparator<String[]>() {
+            public int compare(String[] a, String[] b) {
+                return modified.get(baseName(a[1])).compareTo(modified.get(baseName(b[1])));
+            }
+        });
+        return pairs;
+    }
+
+    /**
+     * Renames a pair to processing
+     * @return false if another watcher took it first
+     */
+    private boolean claim(String[] pair)
+    {
+        seen.remove(pair[0]);
+        seen.remove(pair[1]);
+        if (!new File(inbox, pair[0]).renameTo(new File(processing, pair[0])))
+            return false;
+        if (!new File(inbox, pair[1]).renameTo(new File(processing, pair[1]))) {
+            new File(processing, pair[0]).renameTo(new File(inbox, pair[0]));
+            return false;
+        }
+        return true;
+    }
+
+    private void process(String specName, String pdfName)
+    {
+        final String name = baseName(pdfName);
+        final File spec = new File(processing, specName);
+        final File pdf = new File(processing, pdfName);
+        // written in the outbox, so the final rename is atomic
+        final File tmp = new File(outbox, "." + name + "." + owner + ".tmp");
+        Metrics.Request r = new Metrics.Request(command);
+        r.pdfName = pdfName;
+        r.bytesIn = spec.length() + pdf.length();
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                WebServer.execute(command, new WebServer.Part(spec), new WebServer.Part(pdf), out);
+            } finally {
+                out.close();
+            }
+            r.executed();
+            byte[] head = new byte[4];
+            InputStream in = new FileInputStream(tmp);
+            int len;
+            try {
+                len = Math.max(IOUtils.read(in, head), 0);
+            } finally {
+                in.close();
+            }
+            final String mime = WebServer.resultMimeType(command, head, len);
+            final File result = new File(outbox, name + (mime.equals("application/pdf") ? ".result.pdf" : ".result.yaml"));
+            r.bytesOut = tmp.length();
+            if (!tmp.renameTo(result))
+                throw new IOException("Can not move result to " + result);
+            spec.delete();
+            pdf.delete();
+            r.status = "200";
+            done.incrementAndGet();
+        } catch (Exception e) {
+            tmp.delete();
+            final String message = (e.getMessage() != null) ? e.getMessage() : e.toString();
+            r.status = String.valueOf(WebServer.errorStatus(e));
+            r.error = message;
+            failed.incrementAndGet();
+            System.err.println("Error: " + pdfName + ": " + message);
+            fail(name, spec, pdf, message);
+        } finally {
+            r.finish();
+        }
+    }
+
+    /**
+     * Moves a failed pair to the error directory, the message is written
+     * first so that the pair is never there without it
+     */
+    private void fail(String name, File spec, File pdf, String message)
+    {
+        try {
+            File tmp = new File(errors, "." + name + "." + owner + ".error.tmp");
+            FileUtils.writeStringToFile(tmp, message + "\n", "UTF-8");
+            FileUtils.deleteQuietly(new File(errors, name + ".error"));
+            FileUtils.moveFile(tmp, new File(errors, name + ".error"));
+            for (File f : new File[] {spec, pdf}) {
+                File target = new File(errors, f.getName());
+                FileUtils.deleteQuietly(target);
+                FileUtils.moveFile(f, target);
+            }
+        } catch (IOException e) {
+            System.err.println("Error: Can not move " + name + " to " + errors + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,14 +1,43 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.net.InetSocketAddress;
-import java.util.Date;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.fileupload.MultipartStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+
+import org.json.JSONObject;
+
+import com.itextpdf.text.DocumentException;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -16,12 +45,75 @@ import com.sun.net.httpserver.HttpServer;
 
 public class WebServer {
 
-    public static void start(String specFile, String ip, int port)
+    /**
+     * Seconds a client is asked to wait before retrying an overloaded server
+     */
+    static final String RETRY_AFTER = "1";
+
+    /**
+     * Limits engine work to the number of cores when exchanges run on
+     * virtual threads. Null when the worker pool is the limit itself.
+     */
+    static Semaphore cpuPermits = null;
+
+    /**
+     * Uploaded parts larger than this many bytes are kept in temporary files
+     */
+    static int spillThreshold = 1024 * 1024;
+
+    /**
+     * Stream results as they are produced, see ChunkedResponse
+     */
+    static boolean chunked = false;
+
+    /**
+     * Runs items of /batch requests, the worker pool or the virtual
+     * thread executor
+     */
+    static Executor batchExecutor = null;
+
+    /**
+     * Default seconds allowed for a request, 0 for no deadline
+     */
+    static int timeout = 0;
+
+    /**
+     * False while warming up, see /ready
+     */
+    static volatile boolean ready = true;
+
+    /**
+     * Commands available over HTTP, each has its own context
+     */
+    static final String[] COMMANDS = {"add-verification-pages", "find-texts", "extract-texts", "normalize", "remove-scrive-elements", "select-and-clip", "pipeline"};
+
+    static JobStore jobs = null;
+
+    public static void start(String specFile, ServerOptions opts)
             throws IOException
     {
-        InetSocketAddress address = ((ip != null) && !ip.isEmpty()) ? new InetSocketAddress(ip, port) : new InetSocketAddress(port);  
+        InetSocketAddress address = ((opts.ip != null) && !opts.ip.isEmpty()) ? new InetSocketAddress(opts.ip, opts.port) : new InetSocketAddress(opts.port);  
         HttpServer server = HttpServer.create(address, 0);
-        server.setExecutor(null); // use default
+        Executor executor = opts.virtualThreads ? newVirtualThreadExecutor() : null;
+        if (executor != null) {
+            executor = new QueuedExecutor(executor);
+            cpuPermits = new Semaphore(opts.cpuPermits, true);
+        } else {
+            if (opts.virtualThreads)
+                System.err.println("Warning: Virtual threads require Java 21 or later, using " + opts.threads + " workers instead");
+            executor = new WorkerExecutor(opts.threads, opts.queue);
+        }
+        server.setExecutor(executor);
+        batchExecutor = (executor instanceof WorkerExecutor) ? ((WorkerExecutor)executor).pool : executor;
+        spillThreshold = opts.spillThreshold;
+        chunked = opts.chunked;
+        timeout = opts.timeout;
+        AccessLog.start(opts.accessLog, opts.accessLogBuffer);
+        MemoryBudget.budget = new MemoryBudget((opts.memoryBudget > 0) ? opts.memoryBudget * 1024L * 1024L : Runtime.getRuntime().maxMemory() / 4 * 3);
+        if (opts.cacheSize > 0)
+            ResultCache.cache = new ResultCache(opts.cacheSize * 1024L * 1024L, (opts.cacheDir != null) ? new File(opts.cacheDir) : null, opts.cacheDiskSize * 1024L * 1024L);
+        jobs = new JobStore((opts.jobsDir != null) ? new File(opts.jobsDir) : new File(System.getProperty("java.io.tmpdir"), "scrivepdftools-jobs"),
+                            opts.jobTtl * 1000L, opts.jobStoreSize * 1024L * 1024L);
 
         // Init test client contexts
         TestHandler main = new TestHandler(); 
@@ -32,12 +124,404 @@ public class WebServer {
         server.createContext("/index.htm", main);
 
         // Init PDF processing context for each command
-        final String[] commands = {"add-verification-pages", "find-texts", "extract-texts", "normalize", "remove-scrive-elements", "select-and-clip"};
-        for (String cmd: commands)
+        for (String cmd: COMMANDS)
             server.createContext("/" + cmd, new ExecHandler(cmd));
+        server.createContext("/batch", new BatchHandler());
+        server.createContext("/metrics", new MetricsHandler());
+        server.createContext("/ready", new ReadyHandler());
+        server.createContext("/jobs", new JobsHandler());
 
-        System.out.println("HTTP server starting on " + address.getHostName() + ":" + address.getPort());
+        System.out.println("HTTP server starting on " + address.getHostName() + ":" + address.getPort() +
+                           ((cpuPermits != null) ? " with virtual threads and " + opts.cpuPermits + " cpu permits" : " with " + opts.threads + " workers") +
+                           " and " + (MemoryBudget.budget.total >> 10) + " MB memory budget");
+        ready = (opts.warmup == 0);
         server.start();
+        if (!ready)
+            warmup(opts.warmup);
+    }
+
+    /**
+     * Warms up engines in the background, the server is ready when done
+     */
+    static void warmup(final int rounds)
+    {
+        Thread t = new Thread("warmup") {
+            public void run() {
+                try {
+                    Warmup.run(rounds);
+                } catch (Throwable e) {
+                    e.printStackTrace(System.err);
+                } finally {
+                    ready = true;
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Executor starting a new virtual thread for each exchange. Looked
+     * up by reflection as we still build for older Java versions.
+     * @return null if not supported by the running JVM
+     */
+    static Executor newVirtualThreadExecutor()
+    {
+        try {
+            return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Remembers when an exchange was queued, deadlines are counted from there
+     */
+    static class Queued implements Runnable
+    {
+        private static final ThreadLocal<Long> queuedAt = new ThreadLocal<Long>();
+        final Runnable exchange;
+        final long at = System.nanoTime();
+
+        Queued(Runnable exchange)
+        {
+            this.exchange = exchange;
+        }
+
+        public void run()
+        {
+            queuedAt.set(Long.valueOf(at));
+            try {
+                exchange.run();
+            } finally {
+                queuedAt.remove();
+            }
+        }
+
+        /**
+         * @return when the current exchange was queued, now if not known
+         */
+        static long queuedAt()
+        {
+            Long at = queuedAt.get();
+            return (at == null) ? System.nanoTime() : at.longValue();
+        }
+    }
+
+    /**
+     * Starts measuring an exchange, the request is logged when finished
+     */
+    static Metrics.Request newRequest(String command, HttpExchange t)
+    {
+        return new Metrics.Request(command, t.getRemoteAddress().toString(), Queued.queuedAt());
+    }
+
+    static class QueuedExecutor implements Executor
+    {
+        final Executor executor;
+
+        QueuedExecutor(Executor executor)
+        {
+            this.executor = executor;
+        }
+
+        public void execute(Runnable exchange)
+        {
+            executor.execute(new Queued(exchange));
+        }
+    }
+
+    /**
+     * Deadline of an exchange, from the X-Timeout header (seconds) or
+     * the server default
+     * @return System.nanoTime() based deadline or null if none
+     */
+    static Long deadline(HttpExchange t)
+    {
+        long seconds = timeout;
+        String header = t.getRequestHeaders().getFirst("X-Timeout");
+        if (header != null) {
+            try {
+                seconds = Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Warning: Invalid X-Timeout header: " + header);
+            }
+        }
+        if (seconds <= 0)
+            return null;
+        return Long.valueOf(Queued.queuedAt() + seconds * 1000000000L);
+    }
+
+    /**
+     * Sets deadline of the current thread for the exchange
+     * @return false if it has passed already
+     */
+    static boolean startDeadline(HttpExchange t)
+    {
+        Long at = deadline(t);
+        if (at == null)
+            return true;
+        Deadline.set(at.longValue());
+        return Deadline.remaining() > 0;
+    }
+
+    /**
+     * @return number of requests waiting for a worker or a cpu permit
+     */
+    static int queued()
+    {
+        final int memory = (MemoryBudget.budget != null) ? MemoryBudget.budget.waiting() : 0;
+        if (cpuPermits != null)
+            return memory + cpuPermits.getQueueLength();
+        if (batchExecutor instanceof ThreadPoolExecutor)
+            return memory + ((ThreadPoolExecutor)batchExecutor).getQueue().size();
+        return memory;
+    }
+
+    /**
+     * @return false if a request with this body could never fit in the
+     *         memory budget, known from Content-Length before reading it
+     */
+    static boolean mayFit(HttpExchange t)
+    {
+        final MemoryBudget memory = MemoryBudget.budget;
+        final String length = t.getRequestHeaders().getFirst("Content-Length");
+        if ((memory == null) || (length == null))
+            return true;
+        try {
+            return MemoryBudget.minimum(Long.parseLong(length.trim())) <= memory.total;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Runs the engine, waiting for a cpu permit first in virtual
+     * threads mode. Uploads and downloads do not hold a permit.
+     */
+    static void execute(String command, Part config, Part pdf, OutputStream out)
+        throws IOException, DocumentException
+    {
+        execute(command, config, pdf, out, (ResultCache.cache != null) ? cacheKey(command, config, pdf) : null);
+    }
+
+    /**
+     * @return key of the result in the cache, also used as ETag, or
+     *         null when the result of the command can not be cached
+     */
+    static String cacheKey(String command, Part config, Part pdf) throws IOException
+    {
+        InputStream spec = config.open(), in = pdf.open();
+        try {
+            return ResultCache.key(command, spec, in);
+        } finally {
+            spec.close();
+            in.close();
+        }
+    }
+
+    /**
+     * Sends cached result if there is one, otherwise runs the command and
+     * caches its result
+     * @param key  cache key or null
+     */
+    static void execute(String command, Part config, Part pdf, OutputStream out, String key)
+        throws IOException, DocumentException
+    {
+        Deadline.check();
+        final ResultCache cache = ResultCache.cache;
+        if ((cache == null) || (key == null)) {
+            run(command, config, pdf, out);
+            return;
+        }
+        byte[] result = cache.get(key);
+        if (result != null) {
+            out.write(result);
+            return;
+        }
+        ResultCache.CaptureOutputStream capture = new ResultCache.CaptureOutputStream(out, cache.entryLimit);
+        run(command, config, pdf, capture);
+        if ((result = capture.captured()) != null)
+            cache.put(key, result);
+    }
+
+    /**
+     * Runs the command once its estimated memory and a cpu permit are
+     * available. Memory is reserved first, so that waiting for it never
+     * holds a cpu permit.
+     */
+    private static void run(String command, Part config, Part pdf, OutputStream out)
+        throws IOException, DocumentException
+    {
+        final MemoryBudget memory = MemoryBudget.budget;
+        final long cost = (memory != null) ? MemoryBudget.estimate(config, pdf) : 0;
+        if (memory != null)
+            memory.acquire(cost);
+        try {
+            InputStream spec = config.open(), in = pdf.open();
+            try {
+                boolean known;
+                if (cpuPermits == null) {
+                    known = (new Main()).execute(command, spec, in, out);
+                } else {
+                    if (Deadline.get() == null) {
+                        cpuPermits.acquireUninterruptibly();
+                    } else {
+                        try {
+                            if (!cpuPermits.tryAcquire(Deadline.remaining(), TimeUnit.NANOSECONDS))
+                                throw new Deadline.ExceededException();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    try {
+                        known = (new Main()).execute(command, spec, in, out);
+                    } finally {
+                        cpuPermits.release();
+                    }
+                }
+                if (!known)
+                    throw new IllegalArgumentException("Unknown command: " + command);
+            } finally {
+                spec.close();
+                in.close();
+            }
+        } finally {
+            if (memory != null)
+                memory.release(cost);
+        }
+    }
+
+    /**
+     * Thrown when a streamed response fails after its headers were
+     * sent. It is left to HttpServer, which closes the connection
+     * without the terminating zero length chunk, so clients see an
+     * incomplete transfer instead of a truncated but valid result.
+     */
+    static class ResponseAbortedException extends IOException
+    {
+        private static final long serialVersionUID = 3163957380409271846L;
+
+        ResponseAbortedException(Throwable cause)
+        {
+            super("Response aborted after streaming started");
+            initCause(cause);
+        }
+    }
+
+    /**
+     * Response body sent with chunked transfer encoding. Headers go
+     * out with the first byte, so errors before that are still
+     * answered with a regular error response.
+     */
+    static class ChunkedResponse extends OutputStream
+    {
+        private final HttpExchange t;
+        private final String command, pdfName;
+        private OutputStream os = null;
+        long size = 0;
+
+        ChunkedResponse(HttpExchange t, String command, String pdfName)
+        {
+            this.t = t;
+            this.command = command;
+            this.pdfName = pdfName;
+        }
+
+        boolean isStarted()
+        {
+            return os != null;
+        }
+
+        private void start(byte[] head, int len) throws IOException
+        {
+            final String mime = resultMimeType(command, head, len);
+            t.getResponseHeaders().set("Content-Disposition", "attachment; filename=" + resultFileName(command, pdfName, mime));
+            t.getResponseHeaders().set("Content-Type", mime);
+            t.sendResponseHeaders(200, 0);
+            os = t.getResponseBody();
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (os == null) {
+                byte[] head = new byte[Math.min(len, 4)];
+                System.arraycopy(b, off, head, 0, head.length);
+                start(head, head.length);
+            }
+            os.write(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if (os != null)
+                os.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (os == null)
+                start(new byte[0], 0);
+            os.close();
+        }
+    }
+
+    /**
+     * Runs HTTP exchanges on a fixed pool of worker threads with a
+     * bounded queue. When both are full the exchange is run inline on
+     * the dispatcher thread, marked as rejected, so that handlers can
+     * answer 503 right away instead of doing any real work there.
+     */
+    static class WorkerExecutor implements Executor
+    {
+        private static final ThreadLocal<Boolean> rejected = new ThreadLocal<Boolean>();
+        final ThreadPoolExecutor pool;
+
+        WorkerExecutor(int threads, int queue)
+        {
+            final ThreadFactory factory = new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "worker-" + count.incrementAndGet());
+                }
+            };
+            // ArrayBlockingQueue needs room for at least one exchange
+            pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue<Runnable>(Math.max(queue, 1)), factory);
+        }
+
+        public void execute(Runnable exchange)
+        {
+            try {
+                pool.execute(new Queued(exchange));
+            } catch (RejectedExecutionException e) {
+                rejected.set(Boolean.TRUE);
+                try {
+                    exchange.run();
+                } finally {
+                    rejected.remove();
+                }
+            }
+        }
+
+        /**
+         * True when the current exchange did not fit in the worker queue
+         */
+        static boolean isRejected()
+        {
+            return rejected.get() != null;
+        }
     }
 
     /**
@@ -48,10 +532,19 @@ public class WebServer {
     static class TestHandler implements HttpHandler
     {
         public void handle(HttpExchange t) throws IOException
+        {
+            Metrics.Request r = newRequest("test-client", t);
+            try {
+                handle(t, r);
+            } finally {
+                r.finish();
+            }
+        }
+
+        private void handle(HttpExchange t, Metrics.Request r) throws IOException
         {
             int code = 200;
             String response = "";
-            System.out.println("\n->[" + (new Date()).toString() + "] Request " + t.getProtocol().toString() + "/" + t.getRequestMethod() + " from " + t.getRemoteAddress().toString());
             // load test HTML page
             try {
                BufferedReader reader = new BufferedReader(new FileReader(Main.getResource("assets/test-client.html"))); // use JAR resources if possible
@@ -64,8 +557,10 @@ public class WebServer {
                 e.printStackTrace(System.err);
                 code = 500;
                 response = "Error: Failed to load test page..";
+                r.error = response;
             }
             // send response            
+            r.status = String.valueOf(code);
             t.sendResponseHeaders(code, response.length());
             OutputStream os = t.getResponseBody();
             os.write(response.getBytes("UTF-8"));
@@ -80,90 +575,274 @@ public class WebServer {
         final int i1 = line.indexOf("\r\n", i);
         return (i1 < 0) ? line.substring(i + key.length()) : line.substring(i + key.length(), i1);
     }
-    static class ExecHandler implements HttpHandler
+    /**
+     * Single uploaded part. Kept in memory up to spillThreshold bytes,
+     * larger parts are streamed to a temporary file instead so heap
+     * use does not grow with the size of the upload.
+     */
+    static class Part
     {
-        String command;
-        byte[] config = null;
-        byte[] pdf = null;
-        String configName = null;
-        String pdfName = null;
+        final byte[] data;
+        final File file;
+        final long size;
 
-        ExecHandler(String command)
+        Part(DeferredFileOutputStream buf)
         {
-            this.command = command;
+            data = buf.isInMemory() ? buf.getData() : null;
+            file = buf.isInMemory() ? null : buf.getFile();
+            size = buf.isInMemory() ? data.length : file.length();
         }
 
-        private void onFormField(String disp, String ctype, byte[] data)
+        Part(byte[] data)
         {
-            if ((data.length == 0) || disp.isEmpty())
-                return;
-            disp = getVal(disp, "form-data; name=\"");
-            String fname = getVal(disp, "filename=\"");
-            if ((fname != null) && (0 < fname.indexOf('"'))) {
-                fname = fname.substring(0, fname.indexOf('"'));
+            this.data = data;
+            this.file = null;
+            this.size = data.length;
+        }
+
+        Part(File file)
+        {
+            this.data = null;
+            this.file = file;
+            this.size = file.length();
+        }
+
+        InputStream open() throws IOException
+        {
+            return (file != null) ? new Engine.FileStream(file) : new ByteArrayInputStream(data);
+        }
+
+        void delete()
+        {
+            if (file != null)
+                file.delete();
+        }
+    }
+
+    /**
+     * Receives parts of a multipart form in the order they arrive. The
+     * listener owns the part and must delete it when not needed.
+     */
+    interface FormListener
+    {
+        void onFormField(String name, String fileName, Part data) throws IOException;
+    }
+
+    /**
+     * This method parses multipart form encapsulated in HTTP 1.1 POST request
+     */
+    static void readParts(InputStream body, String boundary, FormListener listener) throws IOException
+    {
+        MultipartStream multipartStream = new MultipartStream(body, boundary.getBytes(), 16384, null); // 16 kB buffer 
+        boolean nextPart = multipartStream.skipPreamble();
+        while (nextPart) {
+            String header = multipartStream.readHeaders();
+            DeferredFileOutputStream buf = new DeferredFileOutputStream(spillThreshold, "scrivepdftools-", ".part", null);
+            try {
+                multipartStream.readBodyData(buf);
+            } catch (IOException e) {
+                buf.close();
+                new Part(buf).delete();
+                throw e;
             }
-            if (disp.startsWith("config")) {
+            buf.close();
+            Part data = new Part(buf);
+            String disp = getVal(header, "Content-Disposition: ");
+            if ((data.size == 0) || (disp == null) || disp.isEmpty()) {
+                data.delete();
+            } else {
+                disp = getVal(disp, "form-data; name=\"");
+                String fname = getVal(disp, "filename=\"");
+                if ((fname != null) && (0 < fname.indexOf('"'))) {
+                    fname = fname.substring(0, fname.indexOf('"'));
+                }
+                listener.onFormField(disp, fname, data);
+            }
+            nextPart = multipartStream.readBoundary();
+        }            
+    }
+
+    /**
+     * Parts of a single upload, kept per exchange so that requests
+     * can be processed concurrently.
+     */
+    static class FormData implements FormListener
+    {
+        Part config = null;
+        Part pdf = null;
+        String configName = null;
+        String pdfName = null;
+
+        public void onFormField(String name, String fileName, Part data)
+        {
+            if (name.startsWith("config")) {
+                if (config != null)
+                    config.delete();
                 config = data;
-                configName = fname;                    
-            } else if (disp.startsWith("pdf")) {
+                configName = fileName;                    
+            } else if (name.startsWith("pdf")) {
+                if (pdf != null)
+                    pdf.delete();
                 pdf = data;
-                pdfName = fname;
+                pdfName = fileName;
+            } else {
+                data.delete();
             }
         }
 
+        boolean isComplete()
+        {
+            return (config != null) && (pdf != null) && (pdfName != null) && (configName != null);
+        }
+
         /**
-         * This method parses multipart form encapsulated in HTTP 1.1 POST request
+         * Removes temporary files, if any
          */
-        private boolean parseRequest(InputStream body, String boundary) throws IOException
-        {
-            try {
-                MultipartStream multipartStream = new MultipartStream(body, boundary.getBytes(), 16384, null); // 16 kB buffer 
-                boolean nextPart = multipartStream.skipPreamble();
-                while (nextPart) {
-                    String header = multipartStream.readHeaders();
-                    ByteArrayOutputStream buf = new ByteArrayOutputStream();  
-                    multipartStream.readBodyData(buf);
-                    onFormField(getVal(header, "Content-Disposition: "), getVal(header, "Content-Type: "), buf.toByteArray());
-                    nextPart = multipartStream.readBoundary();
-                }            
-            } catch (IOException e) {
-                e.printStackTrace(System.err);
-                throw e;
-            }
-            if ((config == null) || (pdf == null) || (pdfName == null) || (configName == null))
-                return false;
-            System.out.println("Uploaded \"" + pdfName + "\" (" + pdf.length + " bytes) and \"" + configName + "\" for: " + command);
-            return true;
+        void delete()
+        {
+            if (config != null)
+                config.delete();
+            if (pdf != null)
+                pdf.delete();
         }
-        
+    }
+
+    /**
+     * File name of a command result, as sent in Content-Disposition
+     */
+    static String resultFileName(String command, String pdfName, String mime)
+    {
+        if( command.equals("find-texts"))
+            return pdfName + ".found-texts.yaml";
+        else if( command.equals("extract-texts"))
+            return pdfName + "extracted-texts.yaml";
+        else if( command.equals("pipeline") && mime.equals("text/yaml"))
+            return pdfName + ".result.yaml";
+        return pdfName + ".result.pdf";
+    }
+
+    /**
+     * @param head  first bytes of the result, pipeline result type
+     *              depends on its last stage
+     */
+    static String resultMimeType(String command, byte[] head, int len)
+    {
+        if( command.equals("find-texts") || command.equals("extract-texts"))
+            return "text/yaml";
+        else if( command.equals("pipeline") && !((len >= 4) && (head[0] == '%') && (head[1] == 'P') && (head[2] == 'D') && (head[3] == 'F')))
+            return "text/yaml";
+        return "application/pdf";
+    }
+
+    /**
+     * @return parsed form or null if any of the required parts is missing
+     */
+    static FormData parseForm(InputStream body, String boundary, String command) throws IOException
+    {
+        FormData form = new FormData();
+        try {
+            readParts(body, boundary, form);
+        } catch (IOException e) {
+            form.delete();
+            e.printStackTrace(System.err);
+            throw e;
+        }
+        if (!form.isComplete()) {
+            form.delete();
+            return null;
+        }
+        return form;
+    }
+
+    static class ExecHandler implements HttpHandler
+    {
+        final String command;
+
+        ExecHandler(String command)
+        {
+            this.command = command;
+        }
+
+        private FormData parseRequest(InputStream body, String boundary) throws IOException
+        {
+            return parseForm(body, boundary, command);
+        }
+
         public void handle(HttpExchange t) throws IOException
+        {
+            Metrics.Request r = newRequest(command, t);
+            try {
+                handle(t, r);
+            } finally {
+                Deadline.clear();
+                r.finish();
+            }
+        }
+
+        private void handle(HttpExchange t, Metrics.Request r) throws IOException
         {
             String response = "200 OK";
             int code = 200;
+            FormData form = null;
             
             // Parse the request
             try { 
-                System.out.println("\n->[" + (new Date()).toString() + "] Request " + t.getProtocol().toString() + "/" + t.getRequestMethod() + " from " + t.getRemoteAddress().toString());
                 final String mpart = "multipart/form-data; boundary=";
                 String ctype = t.getRequestHeaders().getFirst("Content-type");
-                if ((null == ctype) || !ctype.startsWith(mpart)) {
+                if (WorkerExecutor.isRejected()) {
+                    response = "Error 503: Server is busy, try again later";
+                    code = 503;
+                    t.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+                } else if ((null == ctype) || !ctype.startsWith(mpart)) {
                     response = "Error 400: Content-type not recognized: " + ctype; 
                     code = 400;
-                } else if (!parseRequest(t.getRequestBody(), getVal(ctype, mpart))) {
+                } else if (!mayFit(t)) {
+                    response = "Error 413: Request is too large for the memory budget";
+                    code = 413;
+                } else if (!startDeadline(t)) {
+                    response = "Error 504: Deadline exceeded while queued";
+                    code = 504;
+                } else if ((form = parseRequest(t.getRequestBody(), getVal(ctype, mpart))) == null) {
                     code = 400;
                     response = "Error 400: Failed to parse request body"; 
                 } else {
+                    r.bytesIn = form.config.size + form.pdf.size;
+                    r.pdfName = form.pdfName;
+                    final String key = cacheKey(command, form.config, form.pdf);
+                    r.parsed();
+                    if (key != null) {
+                        // results are determined by the request, so the key is a strong ETag
+                        final String etag = "\"" + key + "\"";
+                        t.getResponseHeaders().set("ETag", etag);
+                        if (matches(t.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                            r.status = "304";
+                            t.sendResponseHeaders(304, -1);
+                            t.close();
+                            return;
+                        }
+                    }
                     // Dispatch processing
-                    String outFileName = pdfName + ".result.pdf", mime = "application/pdf";
-                    if( command.equals("find-texts")) {
-                        outFileName = pdfName + ".found-texts.yaml";
-                        mime = "text/yaml";
-                    } else if( command.equals("extract-texts")) {
-                        outFileName = pdfName + "extracted-texts.yaml";
-                        mime = "text/yaml";
+                    if (chunked) {
+                        ChunkedResponse os = new ChunkedResponse(t, command, form.pdfName);
+                        try {
+                            execute(command, form.config, form.pdf, os, key);
+                        } catch (Exception e) {
+                            if (os.isStarted())
+                                throw new ResponseAbortedException(e);
+                            throw e;
+                        }
+                        os.close();
+                        r.executed();
+                        r.status = "200";
+                        r.bytesOut = os.size;
+                        return;
                     }
 
-                    byte[] out = (new Main()).execute(command, config, pdf);
+                    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                    execute(command, form.config, form.pdf, buf, key);
+                    r.executed();
+                    byte[] out = buf.toByteArray();
+                    final String mime = resultMimeType(command, out, out.length), outFileName = resultFileName(command, form.pdfName, mime);
 
                     t.getResponseHeaders().set("Content-Disposition", "attachment; filename=" + outFileName + "; size=" + out.length);
                     t.getResponseHeaders().set("Content-Type", mime);
@@ -171,22 +850,608 @@ public class WebServer {
                     OutputStream os = t.getResponseBody();
                     os.write(out);
                     os.close();
+                    r.status = "200";
+                    r.bytesOut = out.length;
+                    return;
                 }
+            } catch (ResponseAbortedException e) {
+                e.printStackTrace(System.err);
+                r.error = e.getMessage();
+                throw e;
+            } catch (Deadline.ExceededException e) {
+                code = 504;
+                response = "Error 504: Deadline exceeded";
+            } catch (MemoryBudget.TooLargeException e) {
+                code = 413;
+                response = "Error 413: " + e.getMessage();
             } catch (Exception e) {
                 e.printStackTrace(System.err);
                 code = 400;
                 response = "Error 400: Failed to process the request";
+            } finally {
+                if (form != null)
+                    form.delete();
             }
 
             // Send response
+            r.status = String.valueOf(code);
+            r.error = response;
+            t.getResponseHeaders().remove("ETag");
             t.sendResponseHeaders(code, response.length());
             OutputStream os = t.getResponseBody();
             os.write(response.getBytes("UTF-8"));
             os.close();
-            if (code == 200)
-                System.out.println('\t' + response);
-            else
-                System.err.println('\t' + response);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Exports server metrics in Prometheus text format. It is served
+     * even when the server is busy, as it is cheap.
+     */
+    static class MetricsHandler implements HttpHandler
+    {
+        public void handle(HttpExchange t) throws IOException
+        {
+            StringWriter buf = new StringWriter();
+            PrintWriter w = new PrintWriter(buf);
+            Metrics.write(w);
+            w.flush();
+            byte[] out = buf.toString().getBytes("UTF-8");
+            t.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            t.sendResponseHeaders(200, out.length);
+            OutputStream os = t.getResponseBody();
+            os.write(out);
+            os.close();
+        }
+    }
+
+    /**
+     * Readiness probe for load balancers: 503 until warmup is done
+     */
+    static class ReadyHandler implements HttpHandler
+    {
+        public void handle(HttpExchange t) throws IOException
+        {
+            int code = 200;
+            String response = "ready";
+            if (!ready) {
+                code = 503;
+                response = "Error 503: Warming up";
+                t.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+            }
+            byte[] out = response.getBytes("UTF-8");
+            t.sendResponseHeaders(code, out.length);
+            OutputStream os = t.getResponseBody();
+            os.write(out);
+            os.close();
+        }
+    }
+
+    /**
+     * Asynchronous jobs: POST /jobs/<command> accepts the same form as
+     * /<command> and answers 202 with the job id right away, the work is
+     * done on the worker pool. GET /jobs/<id> answers 202 while the job
+     * is pending and streams the result once done, HEAD /jobs/<id> tells
+     * the same status without the result. DELETE /jobs/<id>
+     * forgets the job. Jobs are not subject to request deadlines.
+     */
+    static class JobsHandler implements HttpHandler
+    {
+        public void handle(HttpExchange t) throws IOException
+        {
+            Metrics.Request r = newRequest("jobs", t);
+            try {
+                handle(t, r);
+            } finally {
+                r.finish();
+            }
+        }
+
+        private void handle(HttpExchange t, Metrics.Request r) throws IOException
+        {
+            final String path = t.getRequestURI().getPath();
+            final String name = path.startsWith("/jobs/") ? path.substring("/jobs/".length()) : "";
+            final String method = t.getRequestMethod();
+            int code;
+            String response;
+            try {
+                if (WorkerExecutor.isRejected()) {
+                    code = 503;
+                    response = "Error 503: Server is busy, try again later";
+                    t.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+                } else if (method.equals("POST")) {
+                    submit(t, name, r);
+                    return;
+                } else {
+                    JobStore.Job job = jobs.get(name);
+                    if (job == null) {
+                        code = 404;
+                        response = "Error 404: Unknown or expired job";
+                    } else if (method.equals("DELETE")) {
+                        jobs.remove(job);
+                        r.status = "204";
+                        t.sendResponseHeaders(204, -1);
+                        t.close();
+                        return;
+                    } else if (method.equals("GET")) {
+                        sendJob(t, job, r);
+                        return;
+                    } else if (method.equals("HEAD")) {
+                        // status only, without the result
+                        code = !job.isFinished() ? 202 : ((job.status == JobStore.FAILED) ? 400 : 200);
+                        r.status = String.valueOf(code);
+                        t.sendResponseHeaders(code, -1);
+                        t.close();
+                        return;
+                    } else {
+                        code = 405;
+                        response = "Error 405: Method not allowed: " + method;
+                    }
+                }
+            } catch (Exception e) {
+                if (e instanceof ResponseAbortedException)
+                    throw (ResponseAbortedException)e;
+                e.printStackTrace(System.err);
+                code = 400;
+                response = "Error 400: Failed to process the request";
+            }
+            sendText(t, r, code, response, "text/plain");
+        }
+
+        private void sendText(HttpExchange t, Metrics.Request r, int code, String response, String mime) throws IOException
+        {
+            byte[] out = response.getBytes("UTF-8");
+            r.status = String.valueOf(code);
+            t.getResponseHeaders().set("Content-Type", mime + "; charset=utf-8");
+            t.sendResponseHeaders(code, out.length);
+            OutputStream os = t.getResponseBody();
+            os.write(out);
+            os.close();
+            if (code >= 400)
+                r.error = response;
+        }
+
+        private static String status(JobStore.Job job)
+        {
+            return "{\"id\":" + JSONObject.quote(job.id) + ",\"command\":" + JSONObject.quote(job.command) + ",\"status\":" + JSONObject.quote(job.status) +
+                   ((job.error != null) ? ",\"error\":" + JSONObject.quote(job.error) : "") + "}";
+        }
+
+        private void submit(HttpExchange t, final String command, Metrics.Request r) throws IOException
+        {
+            final String mpart = "multipart/form-data; boundary=";
+            String ctype = t.getRequestHeaders().getFirst("Content-type");
+            if (!Arrays.asList(COMMANDS).contains(command)) {
+                sendText(t, r, 404, "Error 404: Unknown command: " + command, "text/plain");
+                return;
+            }
+            if ((null == ctype) || !ctype.startsWith(mpart)) {
+                sendText(t, r, 400, "Error 400: Content-type not recognized: " + ctype, "text/plain");
+                return;
+            }
+            if (!mayFit(t)) {
+                sendText(t, r, 413, "Error 413: Request is too large for the memory budget", "text/plain");
+                return;
+            }
+            final FormData form = parseForm(t.getRequestBody(), getVal(ctype, mpart), command);
+            if (form == null) {
+                sendText(t, r, 400, "Error 400: Failed to parse request body", "text/plain");
+                return;
+            }
+            final MemoryBudget memory = MemoryBudget.budget;
+            final long cost = (memory != null) ? MemoryBudget.estimate(form.config, form.pdf) : 0;
+            if (cost > ((memory != null) ? memory.total : Long.MAX_VALUE)) {
+                form.delete();
+                sendText(t, r, 413, "Error 413: " + new MemoryBudget.TooLargeException(cost, memory.total).getMessage(), "text/plain");
+                return;
+            }
+            r.bytesIn = form.config.size + form.pdf.size;
+            r.pdfName = form.pdfName;
+            r.parsed();
+            final JobStore.Job job = jobs.create(command, form.pdfName);
+            try {
+                batchExecutor.execute(new Runnable() {
+                    public void run() {
+                        runJob(job, form);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                jobs.remove(job);
+                form.delete();
+                t.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+                sendText(t, r, 503, "Error 503: Server is busy, try again later", "text/plain");
+                return;
+            }
+            t.getResponseHeaders().set("Location", "/jobs/" + job.id);
+            sendText(t, r, 202, status(job), "application/json");
+        }
+
+        private static void runJob(JobStore.Job job, FormData form)
+        {
+            Metrics.Request r = new Metrics.Request(job.command);
+            r.bytesIn = form.config.size + form.pdf.size;
+            r.pdfName = form.pdfName;
+            r.parsed();
+            String status = JobStore.FAILED;
+            job.status = JobStore.RUNNING;
+            try {
+                CountingOutputStream os = new CountingOutputStream(new FileOutputStream(job.result));
+                try {
+                    execute(job.command, form.config, form.pdf, os);
+                } finally {
+                    os.close();
+                }
+                r.executed();
+                byte[] head = new byte[4];
+                InputStream in = new FileInputStream(job.result);
+                int len;
+                try {
+                    len = Math.max(IOUtils.read(in, head), 0);
+                } finally {
+                    in.close();
+                }
+                job.mime = resultMimeType(job.command, head, len);
+                job.size = os.getByteCount();
+                r.bytesOut = job.size;
+                r.status = "200";
+                status = JobStore.DONE;
+            } catch (Exception e) {
+                e.printStackTrace(System.err);
+                job.error = (e.getMessage() != null) ? e.getMessage() : e.toString();
+                job.result.delete();
+                r.status = String.valueOf(errorStatus(e));
+                r.error = job.error;
+            } finally {
+                r.finish();
+                form.delete();
+                jobs.finished(job, status);
+            }
+        }
+
+        private void sendJob(HttpExchange t, JobStore.Job job, Metrics.Request r) throws IOException
+        {
+            if (!job.isFinished()) {
+                t.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+                sendText(t, r, 202, status(job), "application/json");
+                return;
+            }
+            if (job.status == JobStore.FAILED) {
+                sendText(t, r, 400, status(job), "application/json");
+                return;
+            }
+            InputStream in;
+            try {
+                in = new FileInputStream(job.result);
+            } catch (FileNotFoundException e) {
+                // evicted in the meantime
+                sendText(t, r, 404, "Error 404: Unknown or expired job", "text/plain");
+                return;
+            }
+            try {
+                t.getResponseHeaders().set("Content-Disposition", "attachment; filename=" + resultFileName(job.command, job.pdfName, job.mime) + "; size=" + job.size);
+                t.getResponseHeaders().set("Content-Type", job.mime);
+                t.sendResponseHeaders(200, job.size);
+                OutputStream os = t.getResponseBody();
+                IOUtils.copyLarge(in, os);
+                os.close();
+            } finally {
+                in.close();
+            }
+            r.status = "200";
+            r.bytesOut = job.size;
+        }
+    }
+
+    /**
+     * Single (config, pdf) pair of a batch, run as a task on the batch
+     * executor. Parts are deleted once the item is done or aborted.
+     */
+    static class BatchItem implements Callable<byte[]>
+    {
+        final String command;
+        final Part config, pdf;
+        final String pdfName;
+        final Batch batch;
+        final FutureTask<byte[]> task = new FutureTask<byte[]>(this);
+
+        BatchItem(Batch batch, String command, Part config, Part pdf, String pdfName)
+        {
+            this.batch = batch;
+            this.command = command;
+            this.config = config;
+            this.pdf = pdf;
+            this.pdfName = pdfName;
+        }
+
+        public byte[] call() throws Exception
+        {
+            if (batch.aborted) {
+                config.delete();
+                pdf.delete();
+                return null;
+            }
+            Metrics.Request r = new Metrics.Request(command != null ? command : "unknown");
+            r.bytesIn = config.size + pdf.size;
+            r.pdfName = pdfName;
+            r.parsed();
+            // items may run inline on the handler thread, keep its deadline
+            final Long previous = Deadline.get();
+            if (batch.deadline != null)
+                Deadline.set(batch.deadline.longValue());
+            try {
+                if (command == null)
+                    throw new IllegalArgumentException("Missing command");
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                execute(command, config, pdf, buf);
+                r.executed();
+                r.status = "200";
+                r.bytesOut = buf.size();
+                return buf.toByteArray();
+            } catch (Exception e) {
+                r.status = String.valueOf(errorStatus(e));
+                r.error = e.getMessage();
+                throw e;
+            } finally {
+                if (previous != null)
+                    Deadline.set(previous.longValue());
+                else
+                    Deadline.clear();
+                r.finish();
+                config.delete();
+                pdf.delete();
+            }
+        }
+    }
+
+    /**
+     * Items of a /batch request. Each item is started as soon as both
+     * of its parts are uploaded. An optional 'command' field selects
+     * the command for the items that follow it.
+     */
+    static class Batch implements FormListener
+    {
+        final ArrayList<BatchItem> items = new ArrayList<BatchItem>();
+        final Long deadline = Deadline.get();
+        volatile boolean aborted = false;
+        long size = 0;
+        String command;
+        Part config = null;
+        Part pdf = null;
+        String pdfName = null;
+
+        Batch(String command)
+        {
+            this.command = command;
+        }
+
+        public void onFormField(String name, String fileName, Part data) throws IOException
+        {
+            size += data.size;
+            if (name.startsWith("command")) {
+                InputStream in = data.open();
+                try {
+                    command = IOUtils.toString(in, "UTF-8").trim();
+                } finally {
+                    in.close();
+                    data.delete();
+                }
+            } else if (name.startsWith("config")) {
+                if (config != null)
+                    config.delete();
+                config = data;
+            } else if (name.startsWith("pdf")) {
+                if (pdf != null)
+                    pdf.delete();
+                pdf = data;
+                pdfName = (fileName != null) ? fileName : "document-" + (items.size() + 1) + ".pdf";
+            } else {
+                data.delete();
+            }
+            if ((config != null) && (pdf != null)) {
+                BatchItem item = new BatchItem(this, command, config, pdf, pdfName);
+                config = pdf = null;
+                items.add(item);
+                try {
+                    batchExecutor.execute(item.task);
+                } catch (RejectedExecutionException e) {
+                    // no room on the executor, item is run inline when its result is due
+                }
+            }
+        }
+
+        /**
+         * Waits for the item, running it on the current thread if it
+         * was not picked up by the executor yet.
+         */
+        byte[] result(BatchItem item) throws InterruptedException, ExecutionException
+        {
+            item.task.run();
+            if (batchExecutor instanceof ThreadPoolExecutor)
+                ((ThreadPoolExecutor)batchExecutor).remove(item.task);
+            return item.task.get();
+        }
+
+        /**
+         * Skips items that are not started yet and removes temporary files
+         */
+        void delete()
+        {
+            aborted = true;
+            if (config != null)
+                config.delete();
+            if (pdf != null)
+                pdf.delete();
+            for (BatchItem item : items)
+                item.task.run();
+        }
+    }
+
+    /**
+     * Processes many (config, pdf) pairs in one request. Items run in
+     * parallel and results are streamed back as multipart/mixed parts
+     * in request order. Each part has an X-Status header; a failed
+     * item is sent as a text/plain error part and does not stop the
+     * rest of the batch.
+     */
+    static class BatchHandler implements HttpHandler
+    {
+        public void handle(HttpExchange t) throws IOException
+        {
+            Metrics.Request r = newRequest("batch", t);
+            try {
+                handle(t, r);
+            } finally {
+                Deadline.clear();
+                r.finish();
+            }
+        }
+
+        private void handle(HttpExchange t, Metrics.Request r) throws IOException
+        {
+            String response = "200 OK";
+            int code = 200;
+            Batch batch = null;
+
+            final String mpart = "multipart/form-data; boundary=";
+            String ctype = t.getRequestHeaders().getFirst("Content-type");
+            try {
+                if (WorkerExecutor.isRejected()) {
+                    response = "Error 503: Server is busy, try again later";
+                    code = 503;
+                    t.getResponseHeaders().set("Retry-After", RETRY_AFTER);
+                } else if ((null == ctype) || !ctype.startsWith(mpart)) {
+                    response = "Error 400: Content-type not recognized: " + ctype; 
+                    code = 400;
+                } else if (!startDeadline(t)) {
+                    response = "Error 504: Deadline exceeded while queued";
+                    code = 504;
+                } else {
+                    batch = new Batch(getQueryVal(t.getRequestURI().getRawQuery(), "command"));
+                    try {
+                        readParts(t.getRequestBody(), getVal(ctype, mpart), batch);
+                    } catch (IOException e) {
+                        e.printStackTrace(System.err);
+                        batch.delete();
+                        batch = null;
+                    }
+                    if (batch == null) {
+                        code = 400;
+                        response = "Error 400: Failed to parse request body";
+                    } else if (batch.items.isEmpty()) {
+                        batch.delete();
+                        code = 400;
+                        response = "Error 400: No config and pdf pairs in request body";
+                    } else {
+                        r.bytesIn = batch.size;
+                        r.parsed();
+                        sendResults(t, batch, r);
+                        return;
+                    }
+                }
+            } catch (ResponseAbortedException e) {
+                e.printStackTrace(System.err);
+                r.error = e.getMessage();
+                throw e;
+            }
+
+            // Send response
+            r.status = String.valueOf(code);
+            r.error = response;
+            t.sendResponseHeaders(code, response.length());
+            OutputStream os = t.getResponseBody();
+            os.write(response.getBytes("UTF-8"));
+            os.close();
+        }
+
+        private void sendResults(HttpExchange t, Batch batch, Metrics.Request r) throws IOException
+        {
+            final String boundary = "scrivepdftools-" + Long.toHexString(System.nanoTime());
+            int failed = 0;
+            try {
+                t.getResponseHeaders().set("Content-Type", "multipart/mixed; boundary=" + boundary);
+                t.sendResponseHeaders(200, 0);
+                CountingOutputStream os = new CountingOutputStream(t.getResponseBody());
+                for (BatchItem item : batch.items) {
+                    int status = 200;
+                    String mime, fileName;
+                    byte[] out;
+                    try {
+                        out = batch.result(item);
+                        mime = resultMimeType(item.command, out, out.length);
+                        fileName = resultFileName(item.command, item.pdfName, mime);
+                    } catch (ExecutionException e) {
+                        status = errorStatus(e.getCause());
+                        if (status == 400)
+                            e.getCause().printStackTrace(System.err);
+                        mime = "text/plain";
+                        fileName = item.pdfName + ".error.txt";
+                        out = ("Error " + status + ": Failed to process \"" + item.pdfName + "\": " + e.getCause().getMessage()).getBytes("UTF-8");
+                        failed++;
+                    }
+                    String header = "--" + boundary + "\r\n" +
+                                    "Content-Type: " + mime + "\r\n" +
+                                    "Content-Disposition: attachment; filename=" + fileName + "; size=" + out.length + "\r\n" +
+                                    "X-Status: " + status + "\r\n\r\n";
+                    os.write(header.getBytes("UTF-8"));
+                    os.write(out);
+                    os.write("\r\n".getBytes("UTF-8"));
+                    os.flush();
+                }
+                os.write(("--" + boundary + "--\r\n").getBytes("UTF-8"));
+                os.close();
+                r.executed();
+                r.status = "200";
+                r.bytesOut = os.getByteCount();
+                if (failed > 0)
+                    r.error = failed + " of " + batch.items.size() + " items failed";
+            } catch (Exception e) {
+                throw new ResponseAbortedException(e);
+            } finally {
+                batch.delete();
+            }
+        }
+    }
+
+    /**
+     * @return HTTP status of a failed batch item or job
+     */
+    static int errorStatus(Throwable e)
+    {
+        if (e instanceof Deadline.ExceededException)
+            return 504;
+        if (e instanceof MemoryBudget.TooLargeException)
+            return 413;
+        return 400;
+    }
+
+    /**
+     * @return true if If-None-Match header lists the ETag
+     */
+    static boolean matches(String ifNoneMatch, String etag)
+    {
+        if (ifNoneMatch == null)
+            return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*") || tag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return decoded value of a query parameter or null
+     */
+    static String getQueryVal(String query, String key) throws IOException
+    {
+        if (query == null)
+            return null;
+        for (String param : query.split("&")) {
+            if (param.startsWith(key + "="))
+                return URLDecoder.decode(param.substring(key.length() + 1), "UTF-8");
+        }
+        return null;
+    }
+}
@@ -20,47 +20,99 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.yaml.snakeyaml.DumperOptions;
 import org.yaml.snakeyaml.TypeDescription;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.Constructor;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.representer.Representer;
 
 public class YamlSpec {
     public String input = null;
     public String output = null;
     public String dumpPath = null;
 
-    static HashMap<Class<?>, ArrayList<TypeDescription>> td = new HashMap<Class<?>, ArrayList<TypeDescription>>();
+    /**
+     * Deflate pages of the dump written to dumpPath
+     */
+    public Boolean compressDump = null;
+
+    static Map<Class<?>, ArrayList<TypeDescription>> td = new ConcurrentHashMap<Class<?>, ArrayList<TypeDescription>>();
 
     static void setTypeDescriptors(Class<?> c, ArrayList<TypeDescription> t) {
         td.put(c, t);
     }
     
+    /**
+     * Yaml instances are costly to create and not thread safe, so every
+     * thread keeps its own loader for each spec class and dumper for each
+     * result class and style, for the lifetime of the process.
+     */
+    static class PerThread extends ThreadLocal<Map<Object, Yaml>> {
+        @Override
+        protected Map<Object, Yaml> initialValue() {
+            return new HashMap<Object, Yaml>();
+        }
+    }
+
+    static PerThread loaders = new PerThread();
+    static PerThread dumpers = new PerThread();
+
     // TODO: calling this is too complicated... and one can forget about providing correct type descritors !
     public static <T extends YamlSpec> T loadFromStream(InputStream input, Class<T> specClass) throws IOException {
-        Constructor constructor = new Constructor(specClass);
-        constructor.setPropertyUtils(constructor.getPropertyUtils()); // seems awkward but is necessary for setSkipMissingProperties() to work
-        constructor.getPropertyUtils().setSkipMissingProperties(true);
+        Map<Object, Yaml> cache = loaders.get();
+        Yaml yaml = cache.get(specClass);
+        if (yaml == null) {
+            Constructor constructor = new Constructor(specClass);
+            constructor.setPropertyUtils(constructor.getPropertyUtils()); // seems awkward but is necessary for setSkipMissingProperties() to work
+            constructor.getPropertyUtils().setSkipMissingProperties(true);
+
+            /*
+             * Java reflection is missing some crucial information about
+             * elements of containers.  Add this information here.
+             */
+            ArrayList<TypeDescription> t = td.get(specClass);
+            if (t == null)
+                constructor.addTypeDescription(new TypeDescription(specClass));
+            else
+                for (TypeDescription i : t)
+                    constructor.addTypeDescription(i);
+
+            yaml = new Yaml(constructor);
+            cache.put(specClass, yaml);
+        }
+        try {
+            return (T)yaml.load(input);
+        } catch (RuntimeException e) {
+            // a failed load may leave partly constructed objects behind
+            cache.remove(specClass);
+            throw e;
+        }
+    }
 
-        /*
-         * Java reflection is missing some crucial information about
-         * elements of containers.  Add this information here.
-         */
-        ArrayList<TypeDescription> t = td.get(specClass);
-        if (t == null)
-            constructor.addTypeDescription(new TypeDescription(specClass));
-        else
-            for (TypeDescription i : t)
-                constructor.addTypeDescription(i);
-                
-        
-        Yaml yaml = new Yaml(constructor);
-        T spec = (T)yaml.load(input);
-        /*
-        DumperOptions options = new DumperOptions();
-        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
-        System.out.println(yaml.dump(spec));
-        */
-        return spec;
+    /**
+     * Dumps result, in block style for testing or in flow style that
+     * is also valid JSON
+     */
+    public static String dump(YamlSpec result, boolean block) {
+        Map<Object, Yaml> cache = dumpers.get();
+        final String key = result.getClass().getName() + (block ? ":block" : ":flow");
+        Yaml yaml = cache.get(key);
+        if (yaml == null) {
+            DumperOptions options = new DumperOptions();
+            options.setDefaultFlowStyle(block ? DumperOptions.FlowStyle.BLOCK : DumperOptions.FlowStyle.FLOW);
+            options.setDefaultScalarStyle(DumperOptions.ScalarStyle.PLAIN );
+            options.setPrettyFlow(false);
+            options.setWidth(Integer.MAX_VALUE);
+            Representer representer = new MyRepresenter();
+            representer.setDefaultFlowStyle(DumperOptions.FlowStyle.FLOW);
+            representer.addClassTag(result.getClass(), Tag.MAP);
+            yaml = new Yaml(representer, options);
+            cache.put(key, yaml);
+        }
+        return yaml.dump(result);
     }
 }